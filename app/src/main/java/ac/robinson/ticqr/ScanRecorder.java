@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ac.robinson.ticqr.core.ScanRecording;
+
+/**
+ * Saves a {@link ScanRecording} of each scanned frame when enabled, so that scans from the field can be replayed
+ * later (see the tools module's ScanReplayRunner). Images are compressed and written on a background thread.
+ */
+class ScanRecorder {
+
+	private static final String TAG = ScanRecorder.class.getSimpleName();
+
+	private final File mDirectory;
+	private volatile boolean mEnabled;
+	private ExecutorService mExecutor;
+
+	ScanRecorder(File directory) {
+		mDirectory = directory;
+	}
+
+	synchronized void setEnabled(boolean enabled) {
+		if (enabled && mExecutor == null) {
+			if (!mDirectory.exists()) {
+				//noinspection ResultOfMethodCallIgnored
+				mDirectory.mkdirs();
+			}
+			mExecutor = Executors.newSingleThreadExecutor();
+		}
+		mEnabled = enabled;
+	}
+
+	boolean isEnabled() {
+		return mEnabled;
+	}
+
+	File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * Save a recording straight away, so that scans are recorded even if fetching the layout or detection fails later.
+	 * Call {@link #update(ScanRecording, File)} to save it again when more is known. The recording is written in the
+	 * background, so its fields must be replaced rather than modified from now on.
+	 *
+	 * @param recording the recording to save (its image is set from the bitmap, which must not be modified afterwards)
+	 * @return the file the recording is saved to, or null if recording is not enabled
+	 */
+	synchronized File record(final ScanRecording recording, final Bitmap bitmap) {
+		if (!mEnabled) {
+			return null;
+		}
+		final File outputFile = new File(mDirectory, recording.getFileName()); // (fixed, even if the page ID changes)
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				ByteArrayOutputStream imageStream = new ByteArrayOutputStream();
+				bitmap.compress(Bitmap.CompressFormat.PNG, 100, imageStream); // (quality is ignored for PNG)
+				recording.image = imageStream.toByteArray();
+				write(recording, outputFile);
+			}
+		});
+		return outputFile;
+	}
+
+	/**
+	 * Save a recording again after adding to it (the image is only compressed once).
+	 *
+	 * @param outputFile the file returned by {@link #record(ScanRecording, Bitmap)}
+	 */
+	synchronized void update(final ScanRecording recording, final File outputFile) {
+		if (mExecutor == null || outputFile == null) {
+			return;
+		}
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				write(recording, outputFile);
+			}
+		});
+	}
+
+	private static void write(ScanRecording recording, File outputFile) {
+		try {
+			recording.write(outputFile);
+			Log.d(TAG, "Saved scan recording to " + outputFile.getAbsolutePath());
+		} catch (IOException | JSONException e) {
+			Log.d(TAG, "Unable to save scan recording: " + e.getLocalizedMessage());
+		}
+	}
+}
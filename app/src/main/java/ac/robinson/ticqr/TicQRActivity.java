@@ -20,6 +20,7 @@ import android.annotation.SuppressLint;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.PointF;
@@ -52,8 +53,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Point;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 import ac.robinson.dualqrscanner.CodeParameters;
 import ac.robinson.dualqrscanner.DecoderActivity;
@@ -61,6 +65,14 @@ import ac.robinson.dualqrscanner.ImageParameters;
 import ac.robinson.dualqrscanner.QRImageParser;
 import ac.robinson.dualqrscanner.ViewfinderView;
 import ac.robinson.dualqrscanner.camera.CameraUtilities;
+import ac.robinson.ticqr.core.CoreLog;
+import ac.robinson.ticqr.core.DebugFrameSink;
+import ac.robinson.ticqr.core.DetectionCostModel;
+import ac.robinson.ticqr.core.DetectionResult;
+import ac.robinson.ticqr.core.ScanRecording;
+import ac.robinson.ticqr.core.TickBox;
+import ac.robinson.ticqr.core.TickBoxLayout;
+import ac.robinson.ticqr.core.TickBoxMatcher;
 import cz.msebera.android.httpclient.Header;
 
 public class TicQRActivity extends DecoderActivity {
@@ -69,6 +81,30 @@ public class TicQRActivity extends DecoderActivity {
 
 	private static final String SERVER_URL = "http://enterise.info/codemaker/pages.php";
 
+	// detection results from consecutive frames of the same page are combined until every box is certain enough (a
+	// single frame is usually enough - see TickBoxFusion)
+	private static final int FUSION_MAXIMUM_FRAMES = 4;
+	private static final float FUSION_CONFIDENCE_THRESHOLD = 2f;
+
+	// un-ticked boxes are sent from detection in batches of this size as they are found, so the order can be shown
+	// (and reviewed) progressively
+	private static final int PROGRESS_BATCH_SIZE = 2;
+
+	// detection is downscaled as needed to finish within this time, based on a model of this device's speed (kept in
+	// preferences) - but never so far that boxes are smaller than the minimum size (in pixels), as they are then lost
+	private static final long DETECTION_LATENCY_BUDGET_MILLIS = 400;
+	private static final float DETECTION_MINIMUM_BOX_SIZE = 24;
+	private static final String PREFERENCES_NAME = "ticqr";
+	private static final String COST_MODEL_KEY = "detection_cost_model";
+	private static DetectionCostModel sCostModel;
+
+	// intermediate detection images can be saved (from the menu) to diagnose problems without a debug build
+	private static final int DEBUG_FRAME_QUEUE_CAPACITY = 12;
+	private static DebugFrameSink sDebugFrameSink;
+
+	// everything received for each scanned frame can be recorded (from the menu) to replay later (see ScanRecording)
+	private static ScanRecorder sScanRecorder;
+
 	private ImageView mImageView;
 
 	private Bitmap mBitmap;
@@ -77,13 +113,20 @@ public class TicQRActivity extends DecoderActivity {
 
 	private float mBoxSize;
 
+	private String mPageId;
+	private JSONObject mServerLayout;
 	private String mDestinationEmail;
-	private final ArrayList<TickBoxHolder> mServerTickBoxes = new ArrayList<>();
-	private ArrayList<PointF> mImageTickBoxes = new ArrayList<>();
+	private final ArrayList<TickBox> mServerTickBoxes = new ArrayList<>();
+	private ArrayList<Point> mImageTickBoxes = new ArrayList<>();
 
 	private boolean mBoxesLoaded = false;
 	private boolean mImageParsed = false;
+	private boolean mPreviewStarted = false;
+	private TickBoxFusion mTickBoxFusion;
+	private ScanRecording mScanRecording;
+	private File mScanRecordingFile;
 
+	private boolean mOrderComplete; // (only true once detection and fusion have finished for the current page)
 	private String mEmailContents;
 
 	static {
@@ -92,26 +135,14 @@ public class TicQRActivity extends DecoderActivity {
 			// TODO: handle initialisation error
 			throw new RuntimeException();
 		}
-	}
-
-	private class TickBoxHolder {
-		public final PointF location;
-		public final String description;
-		public final int quantity;
-		public boolean ticked;
-		public boolean foundOnImage;
 
-		public PointF imagePosition;
-
-		public TickBoxHolder(PointF location, String description, int quantity) {
-			this.location = location;
-			this.description = description;
-			this.quantity = quantity;
-		}
-
-		public void setImagePosition(PointF position) {
-			imagePosition = position;
-		}
+		// send detection and matching logs to logcat (Android drops the core module's default debug logging)
+		CoreLog.setOutput(new CoreLog.Output() {
+			@Override
+			public void d(String tag, String message) {
+				Log.d(tag, message);
+			}
+		});
 	}
 
 	@Override
@@ -130,6 +161,21 @@ public class TicQRActivity extends DecoderActivity {
 		setViews(R.id.viewfinder_view, R.id.preview_view, R.id.image_view);
 		setResizeImageToView(true); // a lower-quality image
 
+		if (sDebugFrameSink == null) {
+			File debugDirectory = getExternalFilesDir("debug");
+			sDebugFrameSink = new DebugFrameSink(debugDirectory != null ? debugDirectory : new File(getFilesDir(),
+					"debug"), DEBUG_FRAME_QUEUE_CAPACITY);
+		}
+		if (sCostModel == null) {
+			sCostModel = DetectionCostModel.fromString(getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).getString
+					(COST_MODEL_KEY, null), DETECTION_MINIMUM_BOX_SIZE);
+		}
+		if (sScanRecorder == null) {
+			File recordingDirectory = getExternalFilesDir("recordings");
+			sScanRecorder = new ScanRecorder(recordingDirectory != null ? recordingDirectory : new File(getFilesDir(),
+					"recordings"));
+		}
+
 		mImageView = (ImageView) findViewById(R.id.image_view);
 		mImageView.setOnTouchListener(mImageTouchListener);
 
@@ -147,13 +193,15 @@ public class TicQRActivity extends DecoderActivity {
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.menu, menu);
-		if (TextUtils.isEmpty(mEmailContents)) {
-			// don't show the send button when there is no email to send
+		if (!mOrderComplete || TextUtils.isEmpty(mEmailContents)) {
+			// don't show the send button while the order is still being detected, or when there is no email to send
 			menu.findItem(R.id.action_send_order).setVisible(false);
 		}
 		if (mBitmap == null) {
 			menu.findItem(R.id.action_rescan).setVisible(false);
 		}
+		menu.findItem(R.id.action_debug_capture).setChecked(sDebugFrameSink.isEnabled());
+		menu.findItem(R.id.action_record_scans).setChecked(sScanRecorder.isEnabled());
 		return super.onCreateOptionsMenu(menu);
 	}
 
@@ -167,12 +215,18 @@ public class TicQRActivity extends DecoderActivity {
 			case R.id.action_rescan:
 				// reset our configuration and set up for rescanning
 				mBitmap = null;
+				mPageId = null;
+				mServerLayout = null;
 				mDestinationEmail = null;
 				mServerTickBoxes.clear();
 				mImageTickBoxes.clear();
 
 				mBoxesLoaded = false;
 				mImageParsed = false;
+				mTickBoxFusion = null;
+				mScanRecording = null;
+				mScanRecordingFile = null;
+				mOrderComplete = false;
 				mEmailContents = null;
 
 				mImageView.setVisibility(View.INVISIBLE); // must be invisible (not gone) as we need its dimensions
@@ -186,6 +240,29 @@ public class TicQRActivity extends DecoderActivity {
 				supportInvalidateOptionsMenu();
 				requestScanResume();
 				return true;
+
+			case R.id.action_debug_capture:
+				boolean debugCaptureEnabled = !sDebugFrameSink.isEnabled();
+				sDebugFrameSink.setEnabled(debugCaptureEnabled);
+				item.setChecked(debugCaptureEnabled);
+				if (debugCaptureEnabled) {
+					Toast.makeText(TicQRActivity.this, getString(R.string.hint_debug_capture_enabled, sDebugFrameSink
+							.getDirectory().getAbsolutePath()), Toast.LENGTH_LONG).show();
+				} else {
+					Log.d(TAG, "Debug capture stopped (" + sDebugFrameSink.getDroppedCount() + " images dropped)");
+				}
+				return true;
+
+			case R.id.action_record_scans:
+				boolean recordScansEnabled = !sScanRecorder.isEnabled();
+				sScanRecorder.setEnabled(recordScansEnabled);
+				item.setChecked(recordScansEnabled);
+				if (recordScansEnabled) {
+					Toast.makeText(TicQRActivity.this, getString(R.string.hint_record_scans_enabled, sScanRecorder
+							.getDirectory().getAbsolutePath()), Toast.LENGTH_LONG).show();
+				}
+				return true;
+
 			default:
 				return super.onOptionsItemSelected(item);
 		}
@@ -200,6 +277,20 @@ public class TicQRActivity extends DecoderActivity {
 	protected void onPageIdFound(String id) {
 		// Toast.makeText(TicQRActivity.this, "Page ID found", Toast.LENGTH_SHORT).show();
 
+		// when capturing further frames of the same page for fusion we already have its tick boxes
+		if (mTickBoxFusion != null) {
+			if (id.equals(mPageId)) {
+				return;
+			}
+			Log.d(TAG, "Page ID changed during frame fusion - restarting");
+			mTickBoxFusion = null;
+			mServerLayout = null;
+			mDestinationEmail = null;
+			mServerTickBoxes.clear();
+			mBoxesLoaded = false;
+		}
+		mPageId = id;
+
 		// handle the demo tick sheet manually (e.g., don't require an internet connection)
 		if ("hfQP".equals(id)) {
 			try {
@@ -248,26 +339,18 @@ public class TicQRActivity extends DecoderActivity {
 	private void parseJsonObject(JSONObject response) {
 		if (response != null) {
 			try {
-				mDestinationEmail = response.isNull("destination") ? null : response.getString("destination");
-
-				JSONArray boxes = response.getJSONArray("tickBoxes");
-				if (boxes != null && !boxes.isNull(0)) {
-					for (int i = 0; i < boxes.length(); i++) {
-						JSONObject jsonBox = boxes.getJSONObject(i);
-
-						TickBoxHolder box = new TickBoxHolder(new PointF(jsonBox.getInt("x"), jsonBox.getInt("y")),
-								jsonBox.getString("description"), jsonBox.getInt("quantity"));
-
-
-						box.ticked = true; // first we assume all boxes are ticked
-						box.foundOnImage = false; // (but not yet found on the image)
-						mServerTickBoxes.add(box);
-					}
-				}
+				TickBoxLayout layout = TickBoxLayout.fromJson(response);
+				mServerLayout = response;
+				mDestinationEmail = layout.destination;
+				mServerTickBoxes.addAll(layout.tickBoxes);
 
 				mBoxesLoaded = true;
 				if (mImageParsed) {
 					verifyBoxes();
+				} else if (mScanRecording != null) {
+					// the picture has already been taken, so add the layout to its recording
+					updateImagePositions();
+					updateScanRecording(null, null);
 				}
 			} catch (JSONException e) {
 				Log.d(TAG, "Unable to parse JSON response");
@@ -292,11 +375,13 @@ public class TicQRActivity extends DecoderActivity {
 		mImageView.setImageBitmap(parsedBitmap);
 		mImageView.setVisibility(View.VISIBLE);
 		mBitmap = parsedBitmap;
+		mOrderComplete = false;
 
 		mImageParameters = imageParameters;
 		mCodeParameters = codeParameters;
 
-		// TODO: dependent on the smallest QR code size (e.g., those with more control points will make this fail)
+		// initial guess only (it depends on the QR code version) - the actual size is estimated from the image, and
+		// this value is just a fallback for when there are too few boxes to estimate from
 		mBoxSize = (mCodeParameters.mPointSpacing / 15) * 7;
 
 		TickBoxImageParserTask parserTask = new TickBoxImageParserTask(parsedBitmap, mBoxSize, new
@@ -307,118 +392,187 @@ public class TicQRActivity extends DecoderActivity {
 			}
 
 			@Override
-			public void boxDetectionSucceeded(ArrayList<PointF> result) {
-				TicQRActivity.this.boxDetectionSucceeded(result);
+			public void boxDetectionSucceeded(DetectionResult result, float detectionScale) {
+				TicQRActivity.this.boxDetectionSucceeded(result, detectionScale);
+			}
+
+			@Override
+			public void boxDetectionProgress(DetectionResult batch) {
+				TicQRActivity.this.boxDetectionProgress(batch);
 			}
 		});
 
+		List<Point[]> codes = new ArrayList<>();
+		codes.add(toPoints(mCodeParameters.mIdPoints));
+		codes.add(toPoints(mCodeParameters.mAlignmentPoints));
+		parserTask.setCodeLocations(codes);
+		parserTask.setDebugFrameSink(sDebugFrameSink);
+		parserTask.setProgressBatchSize(PROGRESS_BATCH_SIZE);
+		parserTask.setLatencyBudget(sCostModel, DETECTION_LATENCY_BUDGET_MILLIS, mCodeParameters.mPointSpacing);
+		mPreviewStarted = false;
+
+		// record the frame straight away, so that scans where fetching the layout or detection fails are still saved
+		mScanRecording = null;
+		mScanRecordingFile = null;
+		if (sScanRecorder.isEnabled()) {
+			mScanRecording = new ScanRecording();
+			mScanRecording.timestamp = System.currentTimeMillis();
+			mScanRecording.pageId = mPageId;
+			mScanRecording.codes = codes;
+			mScanRecording.pointSpacing = mCodeParameters.mPointSpacing;
+			mScanRecording.expectedBoxSize = mBoxSize;
+			if (mBoxesLoaded) {
+				updateImagePositions();
+				mScanRecording.layout = getRecordingLayout(null, null);
+			}
+			mScanRecordingFile = sScanRecorder.record(mScanRecording, parsedBitmap);
+		}
+
 		findViewById(R.id.parse_progress).setVisibility(View.VISIBLE);
 		parserTask.execute();
 	}
 
+	private static Point[] toPoints(PointF[] points) {
+		Point[] convertedPoints = new Point[points.length];
+		for (int i = 0; i < points.length; i++) {
+			convertedPoints[i] = new Point(points[i].x, points[i].y);
+		}
+		return convertedPoints;
+	}
+
 	private void boxDetectionFailed() {
 		findViewById(R.id.parse_progress).setVisibility(View.GONE);
 		Toast.makeText(TicQRActivity.this, getString(R.string.hint_box_detection_failed), Toast.LENGTH_SHORT).show();
 	}
 
-	private void boxDetectionSucceeded(ArrayList<PointF> result) {
-		mImageTickBoxes = result;
+	private void boxDetectionSucceeded(DetectionResult result, float detectionScale) {
+		mImageTickBoxes = new ArrayList<>(result.untickedBoxes);
+		if (result.boxSize > 0) {
+			mBoxSize = result.boxSize; // (used for matching, and for the size of the touch areas of boxes)
+		}
+		saveCostModel();
+		if (mScanRecording != null) {
+			mScanRecording.deviceResult = result.copy();
+			mScanRecording.detectionScale = detectionScale;
+			mScanRecording.deviceDetectionMillis = System.currentTimeMillis() - mScanRecording.timestamp;
+		}
 
 		mImageParsed = true;
 		if (mBoxesLoaded) {
-			verifyBoxes();
+			verifyBoxes(); // (which also updates the recording)
+		} else {
+			updateScanRecording(null, null);
 		}
 	}
 
-	private void verifyBoxes() {
-		// scans the list comparing with the actual tick box positions (some could be outside the image)
-		int maximumBoxDistance = Math.round(mBoxSize * 0.75f);
-		int maximumQRCodeDistance = Math.round(mBoxSize * 0.4f);
-		int maximumQRCodeDistanceSquared = maximumQRCodeDistance * maximumQRCodeDistance;
-
-		Log.d(TAG, "Searching for codes at max distance: " + maximumBoxDistance + " (QR dist: " +
-				maximumQRCodeDistance + ")");
-
-		// update the server boxes with their position on the image
-		for (TickBoxHolder tickBox : mServerTickBoxes) {
-			tickBox.setImagePosition(QRImageParser.getImagePosition(mImageParameters, tickBox.location));
-		}
-
-		// first pass - match ticked boxes on the image with ticked boxes from the server
-		for (PointF p : mImageTickBoxes) {
-
-			// check that we're not too close to a QR code
-			boolean qrBox = false;
-			for (int q = 0, qn = Math.min(mCodeParameters.mIdPoints.length, mCodeParameters.mAlignmentPoints.length);
-			     q < qn; q++) {
-				PointF idP = mCodeParameters.mIdPoints[q];
-				PointF alignP = mCodeParameters.mAlignmentPoints[q];
-				double pX1 = (idP.x - p.x);
-				double pY1 = (idP.y - p.y);
-				double pX2 = (alignP.x - p.x);
-				double pY2 = (alignP.y - p.y);
-				if (((pX1 * pX1) + (pY1 * pY1)) < maximumQRCodeDistanceSquared || ((pX2 * pX2) + (pY2 * pY2)) <
-						maximumQRCodeDistanceSquared) {
-					qrBox = true;
-					break;
-				}
-			}
-			if (qrBox) {
-				// Log.d(TAG, "Box seems to be a QR point - ignoring");
-				continue;
-			}
+	private void saveCostModel() {
+		SharedPreferences.Editor editor = getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).edit();
+		editor.putString(COST_MODEL_KEY, sCostModel.toString());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			editor.apply();
+		} else {
+			editor.commit();
+		}
+	}
 
-			float minDistance = Float.MAX_VALUE;
-			TickBoxHolder assignedBox = null;
-			for (TickBoxHolder tickBox : mServerTickBoxes) {
-				if (tickBox.foundOnImage) {
-					continue;
-				}
+	private void boxDetectionProgress(DetectionResult batch) {
+		if (!mBoxesLoaded) {
+			return; // we don't have the layout yet - every box will be matched when detection has finished
+		}
+		if (!mPreviewStarted) {
+			startPreview();
+		}
 
-				PointF pos = tickBox.imagePosition;
-				float boxDistance = (float) Math.sqrt(Math.pow(p.x - pos.x, 2) + Math.pow(p.y - pos.y, 2));
-				if (boxDistance < maximumBoxDistance && boxDistance < minDistance) {
-					assignedBox = tickBox;
-					minDistance = boxDistance;
+		// un-tick each newly found box straight away, so the order can be reviewed before detection has finished
+		if (TickBoxMatcher.matchAdditionalUntickedBoxes(batch.untickedBoxes, mServerTickBoxes, batch.boxSize) > 0) {
+			for (TickBox tickBox : mServerTickBoxes) {
+				if (tickBox.foundOnImage && tickBox.ticked) {
+					tickBox.ticked = false;
+					removeTickHighlight(tickBox);
 				}
 			}
-			if (assignedBox != null) {
-				Log.d(TAG, "Found closest box (" + assignedBox.description + ") at " + minDistance + " distance");
-				assignedBox.foundOnImage = true;
-				assignedBox.ticked = false;
-			} else {
-				Log.d(TAG, "Couldn't find actual box for detected box at " + minDistance + " distance");
+		}
+	}
+
+	private void startPreview() {
+		// while detection is in progress every visible box is assumed to be ticked until it is found un-ticked - when
+		// fusing further frames of the same page we continue from the previous frame's preview, but the page will
+		// have moved, so every highlight is redrawn at its box's position on the new image
+		updateImagePositions();
+		boolean firstFrame = mTickBoxFusion == null;
+		((RelativeLayout) findViewById(R.id.tick_highlight_holder)).removeAllViews();
+		for (TickBox tickBox : mServerTickBoxes) {
+			tickBox.foundOnImage = false;
+			if (firstFrame) {
+				tickBox.ticked = isOnImage(tickBox);
+			}
+			if (tickBox.ticked && isOnImage(tickBox)) {
+				addTickHighlight(tickBox);
 			}
 		}
+		mPreviewStarted = true;
+	}
+
+	private void updateImagePositions() {
+		// update the server boxes with their position on the image (which changes in every frame we fuse)
+		for (TickBox tickBox : mServerTickBoxes) {
+			PointF imagePosition = QRImageParser.getImagePosition(mImageParameters, new PointF(tickBox.x, tickBox.y));
+			tickBox.setImagePosition(imagePosition.x, imagePosition.y);
+		}
+	}
+
+	private void verifyBoxes() {
+		updateImagePositions();
+
+		// first pass - match un-ticked boxes on the image with boxes from the server (QR codes were masked out before
+		// detection, so there is no need to check whether boxes are actually QR code points)
+		int foundBoxes = TickBoxMatcher.matchUntickedBoxes(mImageTickBoxes, mServerTickBoxes, mBoxSize);
+		Log.d(TAG, "Matched " + foundBoxes + " of " + mImageTickBoxes.size() + " detected boxes to the layout");
+
+		// second pass - boxes that are outside this image (or frames where nothing was detected) provide no evidence;
+		// all others vote for the box being un-ticked (if found) or ticked (if not found) - see TickBoxFusion
+		int boxCount = mServerTickBoxes.size();
+		boolean[] visible = new boolean[boxCount];
+		boolean[] untickedFound = new boolean[boxCount];
+		for (int i = 0; i < boxCount; i++) {
+			TickBox tickBox = mServerTickBoxes.get(i);
+			visible[i] = isOnImage(tickBox);
+			untickedFound[i] = tickBox.foundOnImage;
+		}
+		updateScanRecording(visible, untickedFound);
+		mScanRecording = null; // (a further frame of the same page is a new recording)
+
+		if (mTickBoxFusion == null) {
+			mTickBoxFusion = new TickBoxFusion(boxCount, FUSION_CONFIDENCE_THRESHOLD, FUSION_MAXIMUM_FRAMES);
+		}
+		mTickBoxFusion.addFrame(visible, untickedFound, mImageTickBoxes.size(), foundBoxes);
+		if (!mTickBoxFusion.isComplete()) {
+			// keep the progress indicator visible and capture another frame of the same page
+			Log.d(TAG, "Tick boxes still uncertain after " + mTickBoxFusion.getFrameCount() + " frame(s) - rescanning");
+			mImageParsed = false;
+			requestScanResume();
+			return;
+		}
+		Log.d(TAG, "Combined tick box detections from " + mTickBoxFusion.getFrameCount() + " frame(s)");
 
-		// second pass - un-tick any boxes that are still marked as ticked, but are actually outside the image,
-		// then add an animated tick box on those that remain
+		// third pass - use the combined result (un-ticking any boxes that are outside the final image), then add an
+		// animated tick box on those that remain (replacing any from the progressive preview)
+		((RelativeLayout) findViewById(R.id.tick_highlight_holder)).removeAllViews();
 		boolean tickedBoxes = false;
-		for (TickBoxHolder tickBox : mServerTickBoxes) {
+		for (int i = 0; i < boxCount; i++) {
+			TickBox tickBox = mServerTickBoxes.get(i);
+			tickBox.ticked = visible[i] && mTickBoxFusion.isTicked(i);
+			tickBox.foundOnImage = visible[i] && !tickBox.ticked;
 			if (tickBox.ticked) {
-				PointF imagePosition = tickBox.imagePosition;
-				try {
-					if (mBitmap.getPixel((int) imagePosition.x, (int) imagePosition.y) == Color.TRANSPARENT) {
-						tickBox.ticked = false;
-						Log.d(TAG, "Un-ticking box outside the image (" + tickBox.description + " " +
-								"at " + imagePosition.x + "," + imagePosition.y + ")");
-					}
-				} catch (IllegalArgumentException e) {
-					tickBox.ticked = false;
-					Log.d(TAG, "Un-ticking box with invalid image coordinate (" + tickBox.description + ") at " +
-							imagePosition.x + "," + imagePosition.y);
-				}
-
-				if (tickBox.ticked) {
-					Log.d(TAG, "Ticked box (" + tickBox.description + ") found at " + imagePosition.x + "," +
-							+imagePosition.y);
+				Log.d(TAG, "Ticked box (" + tickBox.description + ") found at " + tickBox.imageX + "," +
+						+tickBox.imageY + " (confidence: " + mTickBoxFusion.getConfidence(i) + ")");
 
-					// add a tick overlay on each ticked box, and allow clicking to tick/un-tick any box
-					addTickHighlight(tickBox);
-					tickedBoxes = true;
-				}
+				// add a tick overlay on each ticked box, and allow clicking to tick/un-tick any box
+				addTickHighlight(tickBox);
+				tickedBoxes = true;
 			}
 		}
+		mTickBoxFusion = null;
 
 		findViewById(R.id.parse_progress).setVisibility(View.GONE);
 
@@ -426,26 +580,72 @@ public class TicQRActivity extends DecoderActivity {
 		if (actionBar != null) {
 			actionBar.setTitle(R.string.title_activity_order);
 		}
+		mOrderComplete = true;
 		mEmailContents = getEmailMessage();
 		supportInvalidateOptionsMenu(); // to show the place order button (if required) & rescan option
 		Toast.makeText(TicQRActivity.this, tickedBoxes ? R.string.hint_send_order : R.string.hint_no_boxes_found,
 				Toast.LENGTH_SHORT).show();
 	}
 
-	private String getEmailMessage() {
-		StringBuilder itemsBuilder = new StringBuilder();
-		for (TickBoxHolder tickBox : mServerTickBoxes) {
-			if (tickBox.ticked) {
-				itemsBuilder.append(getString(R.string.email_item, tickBox.quantity, tickBox.description));
+	private void updateScanRecording(boolean[] visible, boolean[] untickedFound) {
+		if (mScanRecording == null) {
+			return;
+		}
+		mScanRecording.pageId = mPageId;
+		if (mServerLayout != null) {
+			mScanRecording.layout = getRecordingLayout(visible, untickedFound);
+		}
+		sScanRecorder.update(mScanRecording, mScanRecordingFile);
+	}
+
+	/**
+	 * @param visible       whether each box was within this image; or null if not yet known
+	 * @param untickedFound whether an un-ticked box was found at each box in this image; or null if not yet known
+	 * @return the server's layout, plus each box's position on this image (which must have been updated) and what
+	 * this frame found there (boxes are parsed from the layout in order, so their indices are the same); or null if the
+	 * layout could not be copied
+	 */
+	private JSONObject getRecordingLayout(boolean[] visible, boolean[] untickedFound) {
+		try {
+			JSONObject layout = new JSONObject(mServerLayout.toString());
+			JSONArray boxes = layout.getJSONArray("tickBoxes");
+			for (int i = 0, n = Math.min(boxes.length(), mServerTickBoxes.size()); i < n; i++) {
+				TickBox tickBox = mServerTickBoxes.get(i);
+				JSONObject box = boxes.getJSONObject(i);
+				box.put("imageX", tickBox.imageX);
+				box.put("imageY", tickBox.imageY);
+				if (visible != null && untickedFound != null) {
+					box.put("visible", visible[i]);
+					box.put("found", untickedFound[i]);
+				}
 			}
+			return layout;
+		} catch (JSONException e) {
+			Log.d(TAG, "Unable to record scan layout: " + e.getLocalizedMessage());
+			return null;
 		}
-		if (itemsBuilder.length() > 0) {
-			return itemsBuilder.toString();
+	}
+
+	private boolean isOnImage(TickBox tickBox) {
+		try {
+			if (mBitmap.getPixel((int) tickBox.imageX, (int) tickBox.imageY) == Color.TRANSPARENT) {
+				Log.d(TAG, "Box outside the image (" + tickBox.description + " " +
+						"at " + tickBox.imageX + "," + tickBox.imageY + ")");
+				return false;
+			}
+		} catch (IllegalArgumentException e) {
+			Log.d(TAG, "Box with invalid image coordinate (" + tickBox.description + ") at " +
+					tickBox.imageX + "," + tickBox.imageY);
+			return false;
 		}
-		return null;
+		return true;
+	}
+
+	private String getEmailMessage() {
+		return TickBoxMatcher.getOrderText(mServerTickBoxes, getString(R.string.email_item));
 	}
 
-	private void addTickHighlight(TickBoxHolder tickBox) {
+	private void addTickHighlight(TickBox tickBox) {
 		int tickIcon = R.drawable.ic_highlight_tick;
 		Drawable tickDrawable = getResources().getDrawable(tickIcon);
 
@@ -453,9 +653,9 @@ public class TicQRActivity extends DecoderActivity {
 		tickHighlight.setImageResource(tickIcon);
 		RelativeLayout.LayoutParams layoutParams = new RelativeLayout.LayoutParams(ViewGroup.LayoutParams
 				.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
-		layoutParams.leftMargin = mImageView.getLeft() + Math.round(tickBox.imagePosition.x) - (tickDrawable != null ?
+		layoutParams.leftMargin = mImageView.getLeft() + Math.round(tickBox.imageX) - (tickDrawable != null ?
 				(tickDrawable.getIntrinsicWidth() / 2) : 0);
-		layoutParams.topMargin = mImageView.getTop() + Math.round(tickBox.imagePosition.y) - (tickDrawable != null ?
+		layoutParams.topMargin = mImageView.getTop() + Math.round(tickBox.imageY) - (tickDrawable != null ?
 				(tickDrawable.getIntrinsicHeight() / 2) : 0);
 
 		((RelativeLayout) findViewById(R.id.tick_highlight_holder)).addView(tickHighlight, layoutParams);
@@ -465,10 +665,21 @@ public class TicQRActivity extends DecoderActivity {
 		tickHighlight.setTag(tickBox);
 	}
 
+	private void removeTickHighlight(TickBox tickBox) {
+		RelativeLayout highlightHolder = (RelativeLayout) findViewById(R.id.tick_highlight_holder);
+		View tickHighlight = highlightHolder.findViewWithTag(tickBox);
+		if (tickHighlight != null) {
+			highlightHolder.removeView(tickHighlight);
+		}
+	}
+
 	private final View.OnClickListener mTickClickListener = new View.OnClickListener() {
 		@Override
 		public void onClick(View view) {
-			TickBoxHolder holder = (TickBoxHolder) view.getTag();
+			if (!mOrderComplete) {
+				return; // the preview is not final - fusion would overwrite any change (see verifyBoxes)
+			}
+			TickBox holder = (TickBox) view.getTag();
 			if (holder.ticked) {
 				holder.ticked = false;
 				((RelativeLayout) view.getParent()).removeView(view);
@@ -506,16 +717,15 @@ public class TicQRActivity extends DecoderActivity {
 					break;
 
 				case MotionEvent.ACTION_UP:
-					if (mCanClick) {
+					if (mCanClick && mOrderComplete) { // (as in mTickClickListener, only once the order is final)
 						view.playSoundEffect(SoundEffectConstants.CLICK); // so we get the click sound
 						float imageX = event.getX();
 						float imageY = event.getY();
 						float boxSize = mBoxSize; // mBoxSize is total width, but allow to give a larger click area
 						RectF comparisonRect = new RectF();
-						for (TickBoxHolder tickBox : mServerTickBoxes) {
-							PointF position = tickBox.imagePosition;
-							comparisonRect.set(position.x - boxSize, position.y - boxSize, position.x + boxSize,
-									position.y + boxSize);
+						for (TickBox tickBox : mServerTickBoxes) {
+							comparisonRect.set(tickBox.imageX - boxSize, tickBox.imageY - boxSize, tickBox.imageX +
+									boxSize, tickBox.imageY + boxSize);
 							if (!tickBox.ticked && comparisonRect.contains(imageX, imageY)) {
 								tickBox.ticked = true;
 								addTickHighlight(tickBox);
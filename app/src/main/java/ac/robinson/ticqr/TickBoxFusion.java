@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr;
+
+/**
+ * Combines the tick box detections from several consecutive frames of the same page. Each frame's detections are
+ * first assigned to a box in the page layout, then each layout box accumulates confidence that it is ticked (positive)
+ * or un-ticked (negative). A detected un-ticked box is strong evidence, as noise rarely produces a box within a box, so
+ * a single clean frame in which every box is found completes a scan. A missed box is weak evidence, as a single noisy
+ * frame can easily lose an un-ticked box: it takes at least two frames that agree for a box to be called ticked, and
+ * frames whose detections do not match the layout (where the image or its registration may be poor) count for less.
+ * A frame in which nothing was detected at all (e.g., blurred or badly exposed) provides no evidence; only if every
+ * frame up to the maximum is empty are the visible boxes assumed to be ticked (i.e., every box on the page is ticked).
+ */
+class TickBoxFusion {
+
+	// how much each observation shifts a box's confidence
+	private static final float UNTICKED_FOUND_WEIGHT = -2f;
+	private static final float UNTICKED_MISSED_WEIGHT = 1f;
+	private static final float UNTICKED_MISSED_INCONSISTENT_WEIGHT = 0.5f;
+
+	private final float[] mConfidence;
+	private final int[] mObservations;
+	private final int[] mEmptyObservations;
+	private final float mConfidenceThreshold;
+	private final int mMaximumFrames;
+
+	private int mFrameCount;
+
+	/**
+	 * @param confidenceThreshold the confidence every box must reach - to prevent a single frame that misses a box from
+	 *                            completing a scan, this should be more than UNTICKED_MISSED_WEIGHT
+	 */
+	public TickBoxFusion(int boxCount, float confidenceThreshold, int maximumFrames) {
+		mConfidence = new float[boxCount];
+		mObservations = new int[boxCount];
+		mEmptyObservations = new int[boxCount];
+		mConfidenceThreshold = confidenceThreshold;
+		mMaximumFrames = maximumFrames;
+	}
+
+	/**
+	 * Add one frame's results. Boxes that were outside the frame contribute no evidence either way.
+	 *
+	 * @param visible       whether each layout box was within the image in this frame
+	 * @param untickedFound whether an un-ticked box was detected at each layout box position in this frame
+	 * @param detectedBoxes the number of un-ticked boxes detected in the frame
+	 * @param matchedBoxes  the number of those that matched a layout box - if fewer, the frame is inconsistent with
+	 *                      the layout, and its missed boxes count for less
+	 */
+	public void addFrame(boolean[] visible, boolean[] untickedFound, int detectedBoxes, int matchedBoxes) {
+		boolean empty = detectedBoxes == 0;
+		float missedWeight = matchedBoxes == detectedBoxes ? UNTICKED_MISSED_WEIGHT :
+				UNTICKED_MISSED_INCONSISTENT_WEIGHT;
+		for (int i = 0; i < mConfidence.length; i++) {
+			if (!visible[i]) {
+				continue;
+			}
+			if (empty) {
+				mEmptyObservations[i] += 1;
+			} else {
+				mConfidence[i] += untickedFound[i] ? UNTICKED_FOUND_WEIGHT : missedWeight;
+				mObservations[i] += 1;
+			}
+		}
+		mFrameCount += 1;
+	}
+
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * @return true if every box that has been seen in a frame with detections has reached the confidence threshold
+	 * (and at least one such frame has been added), or if we have already captured the maximum number of frames
+	 */
+	public boolean isComplete() {
+		if (mFrameCount >= mMaximumFrames) {
+			return true;
+		}
+		boolean evidence = false;
+		for (int i = 0; i < mConfidence.length; i++) {
+			if (mObservations[i] > 0) {
+				if (Math.abs(mConfidence[i]) < mConfidenceThreshold) {
+					return false;
+				}
+				evidence = true;
+			}
+		}
+		return evidence;
+	}
+
+	/**
+	 * @return true if the accumulated evidence suggests the box at this layout index is ticked; boxes that were never
+	 * within the image are treated as un-ticked
+	 */
+	public boolean isTicked(int box) {
+		if (mObservations[box] == 0) {
+			return mEmptyObservations[box] >= mMaximumFrames; // (nothing was ever found on this page)
+		}
+		return mConfidence[box] > 0;
+	}
+
+	public float getConfidence(int box) {
+		return mConfidence[box];
+	}
+}
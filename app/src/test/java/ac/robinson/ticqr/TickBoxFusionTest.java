@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TickBoxFusionTest {
+
+	// the same values as TicQRActivity
+	private static final float CONFIDENCE_THRESHOLD = 2f;
+	private static final int MAXIMUM_FRAMES = 4;
+
+	private static final boolean[] ALL_VISIBLE = {true, true, true};
+
+	@Test
+	public void singleCleanFrameCompletes() {
+		TickBoxFusion fusion = new TickBoxFusion(3, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, true, true}, 3, 3);
+
+		assertTrue(fusion.isComplete());
+		assertEquals(1, fusion.getFrameCount());
+		assertFalse(fusion.isTicked(0));
+		assertFalse(fusion.isTicked(1));
+		assertFalse(fusion.isTicked(2));
+	}
+
+	@Test
+	public void singleMissedBoxDoesNotComplete() {
+		// a noisy frame that loses one un-ticked box, but has no false detections
+		TickBoxFusion fusion = new TickBoxFusion(3, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, false, true}, 2, 2);
+		assertFalse(fusion.isComplete());
+
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, false, true}, 2, 2);
+		assertTrue(fusion.isComplete());
+		assertEquals(2, fusion.getFrameCount());
+		assertFalse(fusion.isTicked(0));
+		assertTrue(fusion.isTicked(1));
+		assertFalse(fusion.isTicked(2));
+	}
+
+	@Test
+	public void inconsistentFramesNeedMoreFrames() {
+		TickBoxFusion fusion = new TickBoxFusion(3, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, false, true}, 3, 2);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, false, true}, 2, 2);
+		assertFalse(fusion.isComplete());
+
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, false, true}, 2, 2);
+		assertTrue(fusion.isComplete());
+		assertTrue(fusion.isTicked(1));
+	}
+
+	@Test
+	public void missedBoxFoundInLaterFrameIsUnticked() {
+		TickBoxFusion fusion = new TickBoxFusion(3, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, false, true}, 2, 2);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, true, true}, 3, 3);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, true, true}, 3, 3);
+
+		assertTrue(fusion.isComplete());
+		assertFalse(fusion.isTicked(1));
+	}
+
+	@Test
+	public void emptyFrameIsNoEvidence() {
+		TickBoxFusion fusion = new TickBoxFusion(3, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{false, false, false}, 0, 0);
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{false, false, false}, 0, 0);
+		assertFalse(fusion.isComplete());
+		for (int i = 0; i < ALL_VISIBLE.length; i++) {
+			assertEquals(0, fusion.getConfidence(i), 0);
+			assertFalse(fusion.isTicked(i));
+		}
+
+		fusion.addFrame(ALL_VISIBLE, new boolean[]{true, true, true}, 3, 3);
+		assertTrue(fusion.isComplete());
+		assertFalse(fusion.isTicked(1));
+	}
+
+	@Test
+	public void onlyEmptyFramesTickEveryBoxAtMaximumFrames() {
+		TickBoxFusion fusion = new TickBoxFusion(2, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES);
+		for (int i = 0; i < MAXIMUM_FRAMES; i++) {
+			assertFalse(fusion.isComplete());
+			fusion.addFrame(new boolean[]{true, false}, new boolean[]{false, false}, 0, 0);
+		}
+		assertTrue(fusion.isComplete());
+		assertTrue(fusion.isTicked(0));
+		assertFalse(fusion.isTicked(1)); // (never within the image)
+	}
+
+	@Test
+	public void disagreementStopsAtMaximumFrames() {
+		TickBoxFusion fusion = new TickBoxFusion(1, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES);
+		boolean[] visible = {true};
+		for (int i = 0; i < MAXIMUM_FRAMES - 1; i++) {
+			fusion.addFrame(visible, new boolean[]{i % 2 == 1}, 2, 1);
+			assertFalse(fusion.isComplete());
+		}
+		fusion.addFrame(visible, new boolean[]{false}, 2, 1);
+		assertTrue(fusion.isComplete());
+	}
+
+	@Test
+	public void boxesOutsideTheImageAreIgnored() {
+		TickBoxFusion fusion = new TickBoxFusion(2, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES);
+		fusion.addFrame(new boolean[]{true, false}, new boolean[]{true, false}, 1, 1);
+
+		assertTrue(fusion.isComplete());
+		assertEquals(0, fusion.getConfidence(1), 0);
+		assertFalse(fusion.isTicked(1));
+	}
+
+	@Test
+	public void noFramesIsNotComplete() {
+		assertFalse(new TickBoxFusion(2, CONFIDENCE_THRESHOLD, MAXIMUM_FRAMES).isComplete());
+	}
+}
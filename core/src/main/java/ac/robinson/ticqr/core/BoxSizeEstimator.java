@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Estimates the size of the tick boxes on an image, so that detection works for forms printed (or photographed) at
+ * any scale, and with any QR code version. Every square contour that contains another square contour is added to a
+ * histogram of sizes; un-ticked boxes are by far the most common such shape on a form, so the most populated part of
+ * the histogram gives the box size.
+ */
+public class BoxSizeEstimator {
+
+	private static final String TAG = BoxSizeEstimator.class.getSimpleName();
+
+	// the threshold window can't depend on the box size (which we don't know yet), so it depends on the image size
+	private static final int THRESHOLD_WINDOW_DIVISOR = 10;
+	private static final int THRESHOLD_C = 4; // (as in TickBoxDetector)
+
+	private static final int MINIMUM_BOX_SIDE = 8; // anything smaller than this is noise (or text)
+	private static final double BIN_WIDTH = 0.08; // histogram bins are logarithmic - each is 8% wider than the last
+	private static final int MINIMUM_BOX_COUNT = 2; // fewer similar boxes than this means we can't be confident
+
+	// how square a contour's bounding box must be, and how much of that box the contour must fill (e.g., a circle
+	// fills ~0.79 of its bounding box, so circular letters are not mistaken for boxes)
+	private static final double MAXIMUM_ASPECT_RATIO = 1.3;
+	private static final double MINIMUM_FILL_RATIO = 0.85;
+
+	// the range of inner box sizes relative to the outer box
+	private static final double MINIMUM_INNER_RATIO = 0.4;
+	private static final double MAXIMUM_INNER_RATIO = 0.95;
+
+	// TickBoxDetector accepts outer boxes between 1x and 1.35x its box size, and inner boxes of at least 0.5x
+	private static final double MAXIMUM_OUTER_FACTOR = 1.35;
+	private static final double MINIMUM_INNER_FACTOR = 0.5;
+
+	private BoxSizeEstimator() {
+	}
+
+	/**
+	 * @param blurredGrey the blurred greyscale image (which is not modified)
+	 * @param maskRegions areas of the image to ignore (e.g., QR codes)
+	 * @return the estimated box size (in the same units as TickBoxDetector's box size), or 0 if there are not enough
+	 * similar boxes to estimate from
+	 */
+	public static float estimateBoxSize(Mat blurredGrey, List<org.opencv.core.Point[]> maskRegions) {
+		int thresholdWindow = getThresholdWindow(blurredGrey.cols(), blurredGrey.rows());
+
+		Mat thresholdMat = new Mat();
+		Imgproc.adaptiveThreshold(blurredGrey, thresholdMat, 255, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, Imgproc
+				.THRESH_BINARY, thresholdWindow, THRESHOLD_C);
+		for (org.opencv.core.Point[] region : maskRegions) {
+			Imgproc.fillConvexPoly(thresholdMat, new MatOfPoint(region), new Scalar(255));
+		}
+
+		Mat hierarchyMat = new Mat();
+		List<MatOfPoint> contours = new ArrayList<>();
+		Imgproc.findContours(thresholdMat, contours, hierarchyMat, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+		thresholdMat.release();
+
+		// a single pass over the contours, adding each square that contains a square to the histogram
+		int maximumSide = Math.max(blurredGrey.cols(), blurredGrey.rows());
+		int binCount = getBin(maximumSide) + 1;
+		int[] binCounts = new int[binCount];
+		double[] binOuterTotals = new double[binCount];
+		double[] binInnerTotals = new double[binCount];
+		int numContours = contours.size();
+		for (int i = 0; i < numContours && !hierarchyMat.empty(); i++) {
+			int childBox = (int) hierarchyMat.get(0, i)[2]; // (see TickBoxDetector for the hierarchy format)
+			if (childBox == -1) {
+				continue;
+			}
+
+			double outerSide = getSquareSide(contours.get(i));
+			if (outerSide < MINIMUM_BOX_SIDE) {
+				continue;
+			}
+
+			// any of the children may be the inner box (they are usually, but not always, in descending size order)
+			while (childBox != -1) {
+				double innerSide = getSquareSide(contours.get(childBox));
+				double innerRatio = innerSide / outerSide;
+				if (innerRatio >= MINIMUM_INNER_RATIO && innerRatio <= MAXIMUM_INNER_RATIO) {
+					int bin = getBin(outerSide);
+					binCounts[bin] += 1;
+					binOuterTotals[bin] += outerSide;
+					binInnerTotals[bin] += innerSide;
+					break;
+				}
+				childBox = (int) hierarchyMat.get(0, childBox)[0];
+			}
+		}
+		hierarchyMat.release();
+
+		// find the most populated part of the histogram (combining neighbouring bins, as a box size can fall either
+		// side of a bin boundary)
+		int bestBin = -1;
+		int bestCount = 0;
+		for (int bin = 0; bin < binCount; bin++) {
+			int count = getNeighbourhoodCount(binCounts, bin);
+			if (count > bestCount) {
+				bestCount = count;
+				bestBin = bin;
+			}
+		}
+		if (bestCount < MINIMUM_BOX_COUNT) {
+			CoreLog.d(TAG, "Unable to estimate box size - not enough similar boxes (" + bestCount + ")");
+			return 0;
+		}
+
+		double outerTotal = 0;
+		double innerTotal = 0;
+		for (int bin = Math.max(0, bestBin - 1); bin <= Math.min(binCount - 1, bestBin + 1); bin++) {
+			outerTotal += binOuterTotals[bin];
+			innerTotal += binInnerTotals[bin];
+		}
+		double outerSide = outerTotal / bestCount;
+		double innerSide = innerTotal / bestCount;
+
+		// aim for the middle of the range of box sizes that would accept both the outer and inner boxes (thick lines
+		// mean small inner boxes, so the inner limit matters as much as the outer one)
+		double minimumBoxSize = outerSide / MAXIMUM_OUTER_FACTOR;
+		double maximumBoxSize = Math.min(outerSide, innerSide / MINIMUM_INNER_FACTOR);
+		float boxSize = (float) ((minimumBoxSize + maximumBoxSize) / 2);
+		CoreLog.d(TAG, "Estimated box size: " + boxSize + " (outer: " + outerSide + ", inner: " + innerSide + ", " +
+				"from " + bestCount + " boxes)");
+		return boxSize;
+	}
+
+	/**
+	 * @return the (odd) adaptive threshold window size used when estimating from an image of this size
+	 */
+	static int getThresholdWindow(int width, int height) {
+		int thresholdWindow = Math.max(3, Math.min(width, height) / THRESHOLD_WINDOW_DIVISOR);
+		return thresholdWindow % 2 == 0 ? thresholdWindow + 1 : thresholdWindow;
+	}
+
+	/**
+	 * @return the side length of the square the contour approximates, or 0 if the contour is not square enough
+	 */
+	private static double getSquareSide(MatOfPoint contour) {
+		Rect bounds = Imgproc.boundingRect(contour);
+		if (bounds.width < MINIMUM_BOX_SIDE / 2 || bounds.height < MINIMUM_BOX_SIDE / 2) {
+			return 0;
+		}
+		double aspectRatio = bounds.width > bounds.height ? bounds.width / (double) bounds.height : bounds.height /
+				(double) bounds.width;
+		if (aspectRatio > MAXIMUM_ASPECT_RATIO) {
+			return 0;
+		}
+		// contours pass through pixel centres, so a perfect square's area is one pixel less than its bounds each way
+		double area = Math.abs(Imgproc.contourArea(contour));
+		if (area / ((bounds.width - 1) * (bounds.height - 1)) < MINIMUM_FILL_RATIO) {
+			return 0;
+		}
+		return Math.sqrt(area);
+	}
+
+	private static int getBin(double side) {
+		return (int) Math.max(0, Math.floor(Math.log(side / MINIMUM_BOX_SIDE) / Math.log(1 + BIN_WIDTH)));
+	}
+
+	private static int getNeighbourhoodCount(int[] binCounts, int bin) {
+		int count = binCounts[bin];
+		if (bin > 0) {
+			count += binCounts[bin - 1];
+		}
+		if (bin < binCounts.length - 1) {
+			count += binCounts[bin + 1];
+		}
+		return count;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import java.util.logging.Logger;
+
+/**
+ * Debug logging for the core module, which cannot use Android's Log class directly. Messages are sent to
+ * java.util.logging (at FINE level) by default; Android drops java.util.logging messages below INFO, so the app
+ * redirects them to logcat with {@link #setOutput(Output)}.
+ */
+public final class CoreLog {
+
+	public interface Output {
+		void d(String tag, String message);
+	}
+
+	private static final Output DEFAULT_OUTPUT = new Output() {
+		@Override
+		public void d(String tag, String message) {
+			Logger.getLogger(tag).fine(message);
+		}
+	};
+
+	private static volatile Output sOutput = DEFAULT_OUTPUT;
+
+	private CoreLog() {
+	}
+
+	/**
+	 * @param output where to send debug messages; or null to use java.util.logging
+	 */
+	public static void setOutput(Output output) {
+		sOutput = output != null ? output : DEFAULT_OUTPUT;
+	}
+
+	public static void d(String tag, String message) {
+		sOutput.d(tag, message);
+	}
+}
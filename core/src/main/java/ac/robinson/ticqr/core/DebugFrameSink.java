@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves images of the intermediate stages of tick box detection, and of the candidate boxes that were accepted or
+ * rejected, so that detection problems can be diagnosed without a special build. Capture can be switched on and off
+ * at any time; when it is off, detection only pays for a single check per frame.
+ * <p>
+ * Images are copied on the detection thread, then drawn and encoded on a background writer thread. The writer's queue
+ * is bounded - if it is full, further images are dropped rather than slowing detection down.
+ */
+public class DebugFrameSink {
+
+	private static final String TAG = DebugFrameSink.class.getSimpleName();
+
+	private static final Scalar ACCEPTED_COLOUR = new Scalar(0, 255, 0);
+	private static final Scalar REJECTED_COLOUR = new Scalar(0, 0, 255);
+
+	private final File mDirectory;
+	private final BlockingQueue<Runnable> mQueue;
+	private final AtomicInteger mFrameCount = new AtomicInteger();
+	private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+	private volatile boolean mEnabled;
+	private Thread mWriterThread;
+
+	/**
+	 * @param directory     the directory to save images to (created if necessary)
+	 * @param queueCapacity the maximum number of images waiting to be written
+	 */
+	public DebugFrameSink(File directory, int queueCapacity) {
+		mDirectory = directory;
+		mQueue = new ArrayBlockingQueue<>(queueCapacity);
+	}
+
+	public synchronized void setEnabled(boolean enabled) {
+		if (enabled && mWriterThread == null) {
+			if (!mDirectory.exists()) {
+				//noinspection ResultOfMethodCallIgnored
+				mDirectory.mkdirs();
+			}
+			mWriterThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeImages();
+				}
+			}, TAG);
+			mWriterThread.setDaemon(true);
+			mWriterThread.setPriority(Thread.MIN_PRIORITY);
+			mWriterThread.start();
+		}
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * @return the number of images that were not saved because the writer queue was full
+	 */
+	public int getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	/**
+	 * @return a new frame to add images to, or null if capture is switched off
+	 */
+	public Frame startFrame() {
+		if (!mEnabled) {
+			return null;
+		}
+		return new Frame(String.format("%d-%03d", System.currentTimeMillis(), mFrameCount.incrementAndGet()));
+	}
+
+	private void enqueue(Runnable writeTask, Mat image) {
+		if (!mQueue.offer(writeTask)) {
+			image.release();
+			mDroppedCount.incrementAndGet();
+		}
+	}
+
+	private static void write(File outputFile, Mat image) {
+		if (!Imgcodecs.imwrite(outputFile.getAbsolutePath(), image)) {
+			CoreLog.d(TAG, "Unable to save debug image to " + outputFile.getAbsolutePath());
+		}
+	}
+
+	private void writeImages() {
+		while (true) {
+			try {
+				mQueue.take().run();
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				CoreLog.d(TAG, "Unable to save debug image: " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * The images and candidate boxes from a single detection pass.
+	 */
+	public class Frame {
+		private final String mName;
+		private final List<Point[]> mAcceptedBoxes = new ArrayList<>();
+		private final List<Point[]> mRejectedBoxes = new ArrayList<>();
+
+		private Frame(String name) {
+			mName = name;
+		}
+
+		/**
+		 * Save a copy of an intermediate image (the image itself can be modified as soon as this method returns).
+		 */
+		public void addStage(String stage, Mat image) {
+			final Mat imageCopy = image.clone();
+			final File outputFile = new File(mDirectory, mName + "-" + stage + ".png");
+			enqueue(new Runnable() {
+				@Override
+				public void run() {
+					write(outputFile, imageCopy);
+					imageCopy.release();
+				}
+			}, imageCopy);
+		}
+
+		public void addCandidate(Point[] polygon, boolean accepted) {
+			(accepted ? mAcceptedBoxes : mRejectedBoxes).add(polygon);
+		}
+
+		/**
+		 * Save an image of all the candidates added to this frame, drawn over the given background image.
+		 */
+		public void finish(Mat background) {
+			final Mat imageCopy = background.clone();
+			final File outputFile = new File(mDirectory, mName + "-candidates.png");
+			enqueue(new Runnable() {
+				@Override
+				public void run() {
+					Mat colourMat = new Mat();
+					if (imageCopy.channels() == 1) {
+						Imgproc.cvtColor(imageCopy, colourMat, Imgproc.COLOR_GRAY2BGR);
+					} else {
+						imageCopy.copyTo(colourMat);
+					}
+					imageCopy.release();
+					drawPolygons(colourMat, mRejectedBoxes, REJECTED_COLOUR);
+					drawPolygons(colourMat, mAcceptedBoxes, ACCEPTED_COLOUR);
+					write(outputFile, colourMat);
+					colourMat.release();
+				}
+			}, imageCopy);
+		}
+
+		private void drawPolygons(Mat image, List<Point[]> polygons, Scalar colour) {
+			List<MatOfPoint> contours = new ArrayList<>(polygons.size());
+			for (Point[] polygon : polygons) {
+				contours.add(new MatOfPoint(polygon));
+			}
+			Imgproc.drawContours(image, contours, -1, colour, 1);
+		}
+	}
+}
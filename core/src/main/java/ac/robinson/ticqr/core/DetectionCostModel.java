@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import java.util.Locale;
+
+/**
+ * A running model of how long each stage of tick box detection takes on this device, used to choose the detection
+ * scale (see {@link TickBoxDetector#setScale(float)}) that keeps a scan within a latency budget. Slow devices then
+ * detect on a downscaled image, while fast devices keep the full resolution.
+ * <p>
+ * Each stage's cost is tracked per unit of work - per pixel for conversion, blurring and contour searching, and per
+ * pixel per threshold window pixel for the (Gaussian, so separable) adaptive thresholds - as a moving average of the
+ * measured {@link TickBoxDetector.Timings}. Downscaling is limited so that tick boxes never become too small to
+ * detect reliably.
+ * <p>
+ * The box size is only known after detection (it is estimated from the image), so the model also learns the size of
+ * detected boxes relative to the QR code's point spacing, which is known beforehand. Both the minimum scale and the
+ * predicted cost of each scale are based on the box size this predicts.
+ */
+public class DetectionCostModel {
+
+	private static final String TAG = DetectionCostModel.class.getSimpleName();
+
+	private static final int FORMAT_VERSION = 2;
+
+	private static final double SMOOTHING = 0.3; // the weight of each new measurement
+	private static final float SCALE_STEP = 0.05f; // the difference between each scale that is considered
+
+	private final float mMinimumBoxSize;
+
+	private int mMeasurementCount;
+
+	// nanoseconds per unit of work for each stage (see class description)
+	private double mConvertCost; // per original image pixel
+	private double mBlurCost;
+	private double mEstimateCost;
+	private double mThresholdCost;
+	private double mContourCost;
+
+	// the threshold window sizes for a full-scale image (box size estimation is optional, so its window may be 0)
+	private double mEstimateWindow;
+	private double mThresholdWindowPerBoxSize;
+
+	// the detected box size relative to the QR code's point spacing (which is known before detection)
+	private double mBoxSizePerSpacing;
+
+	/**
+	 * @param minimumBoxSize the smallest box size (in pixels) to detect at - downscaling is limited to keep boxes at
+	 *                       least this large, even if the latency budget can then not be met
+	 */
+	public DetectionCostModel(float minimumBoxSize) {
+		mMinimumBoxSize = minimumBoxSize;
+	}
+
+	public synchronized int getMeasurementCount() {
+		return mMeasurementCount;
+	}
+
+	/**
+	 * Update the model with the measured timings of a detection pass.
+	 *
+	 * @param boxSize      the box size that was used (at the original image's scale - i.e., that of the
+	 *                     DetectionResult)
+	 * @param pointSpacing the point spacing of the QR code on the original image
+	 */
+	public synchronized void addMeasurement(TickBoxDetector.Timings timings, float boxSize, float pointSpacing) {
+		if (timings.pixels <= 0 || timings.sourcePixels <= 0 || boxSize <= 0 || pointSpacing <= 0) {
+			return; // nothing was detected, so there is nothing to learn from
+		}
+
+		boolean first = mMeasurementCount == 0;
+		mConvertCost = smooth(mConvertCost, timings.convertNanos / (double) timings.sourcePixels, first);
+		mBlurCost = smooth(mBlurCost, timings.blurNanos / (double) timings.pixels, first);
+		mContourCost = smooth(mContourCost, timings.contourNanos / (double) timings.pixels, first);
+		mThresholdCost = smooth(mThresholdCost, timings.thresholdNanos / ((double) timings.pixels * timings
+				.thresholdWindow), first);
+		mThresholdWindowPerBoxSize = smooth(mThresholdWindowPerBoxSize, timings.thresholdWindow / (boxSize *
+				timings.scale), first);
+		mBoxSizePerSpacing = smooth(mBoxSizePerSpacing, boxSize / pointSpacing, first);
+		if (timings.estimateWindow > 0) {
+			mEstimateCost = smooth(mEstimateCost, timings.estimateNanos / ((double) timings.pixels * timings
+					.estimateWindow), mEstimateCost == 0);
+			mEstimateWindow = smooth(mEstimateWindow, timings.estimateWindow / timings.scale, mEstimateWindow == 0);
+		}
+		mMeasurementCount += 1;
+	}
+
+	/**
+	 * Choose the largest scale at which detection is predicted to take no longer than the given budget. If there have
+	 * not yet been any measurements the full scale is used, so that the first scan measures the device's speed.
+	 *
+	 * @param width        the width of the image to detect on
+	 * @param height       the height of the image to detect on
+	 * @param pointSpacing the point spacing of the QR code on the image, from which the box size is predicted (see
+	 *                     {@link #predictBoxSize(float)}) - the scale is never so small that boxes are smaller than
+	 *                     the minimum box size
+	 * @return the chosen scale, from 0 (exclusive) to 1
+	 */
+	public synchronized float chooseScale(int width, int height, float pointSpacing, long budgetNanos) {
+		float boxSize = predictBoxSize(pointSpacing);
+		if (mMeasurementCount == 0 || boxSize <= 0) {
+			return 1;
+		}
+
+		float minimumScale = Math.min(1, mMinimumBoxSize / boxSize);
+		float scale = 1;
+		while (scale - SCALE_STEP >= minimumScale && predictNanos(width * height, boxSize, scale) > budgetNanos) {
+			scale -= SCALE_STEP;
+		}
+		if (predictNanos(width * height, boxSize, scale) > budgetNanos) {
+			scale = minimumScale; // (the step may have stopped just short of the minimum)
+		}
+		CoreLog.d(TAG, String.format(Locale.US, "Chose %.2f scale: predicted %.1f ms (budget: %.1f ms, box size: %.1f)",
+				scale, predictNanos(width * height, boxSize, scale) / 1e6, budgetNanos / 1e6, boxSize));
+		return scale;
+	}
+
+	/**
+	 * @return the box size that detection is predicted to find on an image with the given QR code point spacing; or 0
+	 * if there have not yet been any measurements
+	 */
+	public synchronized float predictBoxSize(float pointSpacing) {
+		return (float) (mBoxSizePerSpacing * pointSpacing);
+	}
+
+	/**
+	 * @param boxSize the box size on the original image (see {@link #predictBoxSize(float)})
+	 * @return the predicted detection time for an image with the given number of pixels at the given scale
+	 */
+	public synchronized long predictNanos(int sourcePixels, float boxSize, float scale) {
+		double pixels = sourcePixels * (double) scale * scale;
+		double thresholdWindow = mThresholdWindowPerBoxSize * boxSize * scale;
+		double estimateWindow = mEstimateWindow * scale;
+		return Math.round(mConvertCost * sourcePixels + pixels * (mBlurCost + mContourCost + mThresholdCost *
+				thresholdWindow + mEstimateCost * estimateWindow));
+	}
+
+	/**
+	 * @return the model as a string, to be restored with {@link #fromString(String, float)} (e.g., so that it is
+	 * kept between sessions)
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.US, "%d;%d;%g;%g;%g;%g;%g;%g;%g;%g", FORMAT_VERSION, mMeasurementCount,
+				mConvertCost, mBlurCost, mEstimateCost, mThresholdCost, mContourCost, mEstimateWindow,
+				mThresholdWindowPerBoxSize, mBoxSizePerSpacing);
+	}
+
+	/**
+	 * @return the model described by the string (see {@link #toString()}), or a new model if it is null, invalid or
+	 * from an older version
+	 */
+	public static DetectionCostModel fromString(String model, float minimumBoxSize) {
+		DetectionCostModel costModel = new DetectionCostModel(minimumBoxSize);
+		if (model == null) {
+			return costModel;
+		}
+		String[] values = model.split(";");
+		try {
+			if (values.length == 10 && Integer.parseInt(values[0]) == FORMAT_VERSION) {
+				costModel.mMeasurementCount = Integer.parseInt(values[1]);
+				costModel.mConvertCost = Double.parseDouble(values[2]);
+				costModel.mBlurCost = Double.parseDouble(values[3]);
+				costModel.mEstimateCost = Double.parseDouble(values[4]);
+				costModel.mThresholdCost = Double.parseDouble(values[5]);
+				costModel.mContourCost = Double.parseDouble(values[6]);
+				costModel.mEstimateWindow = Double.parseDouble(values[7]);
+				costModel.mThresholdWindowPerBoxSize = Double.parseDouble(values[8]);
+				costModel.mBoxSizePerSpacing = Double.parseDouble(values[9]);
+				return costModel;
+			}
+		} catch (NumberFormatException ignored) {
+		}
+		return new DetectionCostModel(minimumBoxSize); // (i.e., discard any partially-read values)
+	}
+
+	private static double smooth(double average, double value, boolean first) {
+		return first ? value : average + SMOOTHING * (value - average);
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.opencv.core.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a tick box detection pass: the centre of every un-ticked box found, and the box size that was used to
+ * find them (which is estimated from the image if {@link TickBoxDetector#setEstimateBoxSize(boolean)} is enabled).
+ */
+public class DetectionResult {
+
+	public final List<Point> untickedBoxes;
+	public final float boxSize;
+
+	public DetectionResult(List<Point> untickedBoxes, float boxSize) {
+		this.untickedBoxes = untickedBoxes;
+		this.boxSize = boxSize;
+	}
+
+	/**
+	 * @return a deep copy of this result (i.e., its points can be modified without affecting the original)
+	 */
+	public DetectionResult copy() {
+		List<Point> untickedBoxesCopy = new ArrayList<>(untickedBoxes.size());
+		for (Point point : untickedBoxes) {
+			untickedBoxesCopy.add(point.clone());
+		}
+		return new DetectionResult(untickedBoxesCopy, boxSize);
+	}
+}
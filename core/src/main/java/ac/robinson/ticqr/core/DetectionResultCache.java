@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory and (optionally) on-disk cache of tick box detection results, so that an image that has already been
+ * parsed with the same parameters (e.g., the same upload sent to the tools module's recognition service again) can skip
+ * the OpenCV pipeline entirely. Keys are a hash of the image content plus a description of the detection parameters -
+ * see {@link #getKey(Mat, String)}. As the exact content is hashed, a new camera frame of the same page will never
+ * match, so this is not useful for live scanning.
+ */
+public class DetectionResultCache {
+
+	private static final String FILE_EXTENSION = ".pts";
+	private static final int FILE_VERSION = 2; // (version 1 did not store the box size)
+
+	private final LinkedHashMap<String, DetectionResult> mMemoryCache;
+	private final File mDiskDirectory;
+	private final int mDiskCapacity;
+
+	private int mMemoryHits;
+	private int mDiskHits;
+	private int mMisses;
+
+	/**
+	 * @param memoryCapacity the number of results to keep in memory
+	 * @param diskDirectory  the directory to store results in, or null to only cache in memory (other files in the
+	 *                       directory are left alone, but a directory of its own is best)
+	 * @param diskCapacity   the number of results to keep on disk (the least recently written are removed first)
+	 */
+	public DetectionResultCache(final int memoryCapacity, File diskDirectory, int diskCapacity) {
+		mMemoryCache = new LinkedHashMap<String, DetectionResult>(memoryCapacity, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DetectionResult> eldest) {
+				return size() > memoryCapacity;
+			}
+		};
+		mDiskDirectory = diskDirectory;
+		mDiskCapacity = diskCapacity;
+		if (mDiskDirectory != null && !mDiskDirectory.exists()) {
+			//noinspection ResultOfMethodCallIgnored
+			mDiskDirectory.mkdirs();
+		}
+	}
+
+	/**
+	 * Get the cache key for an image and its detection parameters. The whole image content is hashed (rather than,
+	 * e.g., a downscaled perceptual hash) because a single tick is a tiny change that must still produce a new key.
+	 *
+	 * @param image      the image that will be passed to detection
+	 * @param parameters a description of every parameter that affects the detection result (e.g., box size)
+	 */
+	public static String getKey(Mat image, String parameters) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // SHA-1 is required on every Java platform
+		}
+
+		// hash row by row to avoid copying the entire image at once
+		int rowLength = (int) (image.cols() * image.elemSize());
+		byte[] row = new byte[rowLength];
+		for (int y = 0, rows = image.rows(); y < rows; y++) {
+			image.get(y, 0, row);
+			digest.update(row);
+		}
+		digest.update((image.cols() + "x" + image.rows() + "x" + image.type() + ";" + parameters).getBytes());
+
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return a copy of the cached result for this key, or null if there is no cached result
+	 */
+	public synchronized DetectionResult get(String key) {
+		DetectionResult result = mMemoryCache.get(key);
+		if (result != null) {
+			mMemoryHits += 1;
+			return result.copy();
+		}
+
+		result = readFromDisk(key);
+		if (result != null) {
+			mDiskHits += 1;
+			mMemoryCache.put(key, result);
+			return result.copy();
+		}
+
+		mMisses += 1;
+		return null;
+	}
+
+	public synchronized void put(String key, DetectionResult result) {
+		DetectionResult cachedResult = result.copy();
+		mMemoryCache.put(key, cachedResult);
+		writeToDisk(key, cachedResult);
+	}
+
+	public synchronized void clear() {
+		mMemoryCache.clear();
+		File[] files = getDiskFiles();
+		if (files != null) {
+			for (File file : files) {
+				//noinspection ResultOfMethodCallIgnored
+				file.delete();
+			}
+		}
+	}
+
+	public synchronized int getHitCount() {
+		return mMemoryHits + mDiskHits;
+	}
+
+	public synchronized int getMissCount() {
+		return mMisses;
+	}
+
+	public synchronized float getHitRate() {
+		int total = mMemoryHits + mDiskHits + mMisses;
+		return total == 0 ? 0 : (mMemoryHits + mDiskHits) / (float) total;
+	}
+
+	public synchronized String getStatistics() {
+		return "hits: " + (mMemoryHits + mDiskHits) + " (memory: " + mMemoryHits + ", disk: " + mDiskHits + "), " +
+				"misses: " + mMisses + ", hit rate: " + Math.round(getHitRate() * 100) + "%";
+	}
+
+	/**
+	 * @return the cache's own entries in the disk directory (i.e., never any other files); or null if there are none
+	 */
+	private File[] getDiskFiles() {
+		if (mDiskDirectory == null) {
+			return null;
+		}
+		return mDiskDirectory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File directory, String name) {
+				return name.endsWith(FILE_EXTENSION);
+			}
+		});
+	}
+
+	private DetectionResult readFromDisk(String key) {
+		if (mDiskDirectory == null) {
+			return null;
+		}
+		File cacheFile = new File(mDiskDirectory, key + FILE_EXTENSION);
+		if (!cacheFile.exists()) {
+			return null;
+		}
+
+		DataInputStream inputStream = null;
+		try {
+			inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			if (inputStream.readInt() != FILE_VERSION) {
+				return null;
+			}
+			float boxSize = inputStream.readFloat();
+			int count = inputStream.readInt();
+			List<Point> untickedBoxes = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				untickedBoxes.add(new Point(inputStream.readDouble(), inputStream.readDouble()));
+			}
+			return new DetectionResult(untickedBoxes, boxSize);
+		} catch (IOException e) {
+			return null; // treat unreadable entries as a miss - they will be overwritten after detection
+		} finally {
+			closeQuietly(inputStream);
+		}
+	}
+
+	private void writeToDisk(String key, DetectionResult result) {
+		if (mDiskDirectory == null) {
+			return;
+		}
+
+		DataOutputStream outputStream = null;
+		try {
+			outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File
+					(mDiskDirectory, key + FILE_EXTENSION))));
+			outputStream.writeInt(FILE_VERSION);
+			outputStream.writeFloat(result.boxSize);
+			outputStream.writeInt(result.untickedBoxes.size());
+			for (Point point : result.untickedBoxes) {
+				outputStream.writeDouble(point.x);
+				outputStream.writeDouble(point.y);
+			}
+		} catch (IOException e) {
+			return; // the disk cache is only an optimisation
+		} finally {
+			closeQuietly(outputStream);
+		}
+
+		// remove the oldest entries if we are over capacity
+		File[] files = getDiskFiles();
+		if (files != null && files.length > mDiskCapacity) {
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File lhs, File rhs) {
+					long difference = lhs.lastModified() - rhs.lastModified();
+					return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+				}
+			});
+			for (int i = 0, n = files.length - mDiskCapacity; i < n; i++) {
+				//noinspection ResultOfMethodCallIgnored
+				files[i].delete();
+			}
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.opencv.core.Point;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Everything the app received for a single scanned frame, so that the scan can be replayed later (e.g., by the tools
+ * module's ScanReplayRunner) to reproduce problems or benchmark detection on real-world images.
+ * <p>
+ * A recording is a single zip file containing the image (image.png) and everything else as JSON (scan.json). The QR
+ * code image parameters are specific to the scanning library, so rather than storing them the layout's boxes are
+ * stored with the image positions that were calculated from them (as "imageX" and "imageY" - see
+ * {@link TickBoxLayout#fromJson(JSONObject)}), along with whether each box was visible and found on the device.
+ */
+public class ScanRecording {
+
+	public static final String FILE_EXTENSION = ".ticqr";
+
+	private static final int FORMAT_VERSION = 1;
+	private static final String IMAGE_ENTRY = "image.png";
+	private static final String SCAN_ENTRY = "scan.json";
+
+	public long timestamp;
+	public String pageId;
+
+	// from the QR code parameters
+	public List<Point[]> codes = new ArrayList<>();
+	public float pointSpacing;
+	public float expectedBoxSize;
+
+	// the PNG-encoded image
+	public byte[] image;
+
+	// the layout (in the server's JSON format), with each box's "imageX", "imageY", "visible" and "found" added
+	public JSONObject layout;
+
+	// the device's detection result
+	public DetectionResult deviceResult;
+	public long deviceDetectionMillis;
+
+	// the scale the device detected at (see TickBoxDetector.setScale(float)), which replays should also use
+	public float detectionScale = 1;
+
+	/**
+	 * @return a file name for this recording that sorts by time
+	 */
+	public String getFileName() {
+		return timestamp + "-" + (pageId == null ? "unknown" : pageId.replaceAll("[^A-Za-z0-9_-]", "_")) +
+				FILE_EXTENSION;
+	}
+
+	public void write(File file) throws IOException, JSONException {
+		JSONObject scan = new JSONObject();
+		scan.put("version", FORMAT_VERSION);
+		scan.put("timestamp", timestamp);
+		scan.put("pageId", pageId == null ? JSONObject.NULL : pageId);
+
+		JSONArray codesJson = new JSONArray();
+		for (Point[] code : codes) {
+			codesJson.put(toJson(code));
+		}
+		scan.put("codes", codesJson);
+		scan.put("pointSpacing", pointSpacing);
+		scan.put("expectedBoxSize", expectedBoxSize);
+		scan.put("layout", layout == null ? JSONObject.NULL : layout);
+		scan.put("detectionScale", detectionScale);
+
+		if (deviceResult != null) {
+			JSONObject resultJson = new JSONObject();
+			resultJson.put("untickedBoxes", toJson(deviceResult.untickedBoxes.toArray(new Point[deviceResult
+					.untickedBoxes.size()])));
+			resultJson.put("boxSize", deviceResult.boxSize);
+			resultJson.put("detectionMillis", deviceDetectionMillis);
+			scan.put("deviceResult", resultJson);
+		}
+
+		ZipOutputStream outputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			// the image is already compressed, so is just stored
+			ZipEntry imageEntry = new ZipEntry(IMAGE_ENTRY);
+			imageEntry.setMethod(ZipEntry.STORED);
+			imageEntry.setSize(image.length);
+			CRC32 crc = new CRC32();
+			crc.update(image);
+			imageEntry.setCrc(crc.getValue());
+			outputStream.putNextEntry(imageEntry);
+			outputStream.write(image);
+			outputStream.closeEntry();
+
+			outputStream.putNextEntry(new ZipEntry(SCAN_ENTRY));
+			outputStream.write(scan.toString().getBytes("UTF-8"));
+			outputStream.closeEntry();
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	public static ScanRecording read(File file) throws IOException, JSONException {
+		byte[] imageData = null;
+		JSONObject scan = null;
+		ZipInputStream inputStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			ZipEntry entry;
+			while ((entry = inputStream.getNextEntry()) != null) {
+				if (IMAGE_ENTRY.equals(entry.getName())) {
+					imageData = readFully(inputStream);
+				} else if (SCAN_ENTRY.equals(entry.getName())) {
+					scan = new JSONObject(new String(readFully(inputStream), "UTF-8"));
+				}
+			}
+		} finally {
+			inputStream.close();
+		}
+		if (imageData == null || scan == null) {
+			throw new IOException("Not a scan recording: " + file.getName());
+		}
+		if (scan.getInt("version") != FORMAT_VERSION) {
+			throw new IOException("Unsupported scan recording version: " + scan.getInt("version"));
+		}
+
+		ScanRecording recording = new ScanRecording();
+		recording.image = imageData;
+		recording.timestamp = scan.getLong("timestamp");
+		recording.pageId = scan.isNull("pageId") ? null : scan.getString("pageId");
+
+		JSONArray codesJson = scan.getJSONArray("codes");
+		for (int i = 0; i < codesJson.length(); i++) {
+			recording.codes.add(fromJson(codesJson.getJSONArray(i)));
+		}
+		recording.pointSpacing = (float) scan.getDouble("pointSpacing");
+		recording.expectedBoxSize = (float) scan.getDouble("expectedBoxSize");
+		recording.layout = scan.isNull("layout") ? null : scan.getJSONObject("layout");
+		recording.detectionScale = (float) scan.optDouble("detectionScale", 1); // (not in older recordings)
+
+		JSONObject resultJson = scan.optJSONObject("deviceResult");
+		if (resultJson != null) {
+			Point[] untickedBoxes = fromJson(resultJson.getJSONArray("untickedBoxes"));
+			List<Point> untickedBoxList = new ArrayList<>(untickedBoxes.length);
+			for (Point point : untickedBoxes) {
+				untickedBoxList.add(point);
+			}
+			recording.deviceResult = new DetectionResult(untickedBoxList, (float) resultJson.getDouble("boxSize"));
+			recording.deviceDetectionMillis = resultJson.optLong("detectionMillis");
+		}
+		return recording;
+	}
+
+	private static JSONArray toJson(Point[] points) throws JSONException {
+		JSONArray pointsJson = new JSONArray();
+		for (Point point : points) {
+			pointsJson.put(new JSONArray().put(point.x).put(point.y));
+		}
+		return pointsJson;
+	}
+
+	private static Point[] fromJson(JSONArray pointsJson) throws JSONException {
+		Point[] points = new Point[pointsJson.length()];
+		for (int i = 0; i < points.length; i++) {
+			JSONArray pointJson = pointsJson.getJSONArray(i);
+			points[i] = new Point(pointJson.getDouble(0), pointJson.getDouble(1));
+		}
+		return points;
+	}
+
+	private static byte[] readFully(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = inputStream.read(buffer)) != -1) {
+			outputStream.write(buffer, 0, count);
+		}
+		return outputStream.toByteArray();
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+/**
+ * A tick box from a page layout, along with its state after being compared with a scanned image.
+ */
+public class TickBox {
+	public final float x; // position in layout coordinates
+	public final float y;
+	public final String description;
+	public final int quantity;
+	public boolean ticked;
+	public boolean foundOnImage;
+
+	public float imageX; // position in image coordinates (set for each image the layout is compared with)
+	public float imageY;
+
+	public TickBox(float x, float y, String description, int quantity) {
+		this.x = x;
+		this.y = y;
+		this.description = description;
+		this.quantity = quantity;
+	}
+
+	public void setImagePosition(float x, float y) {
+		imageX = x;
+		imageY = y;
+	}
+}
@@ -0,0 +1,690 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds un-ticked tick boxes in an image. This is the OpenCV part of the app's TickBoxImageParserTask, separated so
+ * that the same pipeline can also be run on a desktop JVM (e.g., by the tools module).
+ */
+public class TickBoxDetector {
+
+	private static final String TAG = TickBoxDetector.class.getSimpleName();
+	private static final boolean DEBUG = false;
+
+	// how far beyond the centres of its finder patterns a QR code extends, relative to the spacing of those centres -
+	// e.g., for a 21 module (version 1) code this is about 4 modules, covering the finder patterns themselves (3.5)
+	// and some of the quiet zone; larger codes have smaller modules, so the margin is more than enough
+	private static final float CODE_MARGIN_FACTOR = 0.3f;
+
+	private final float mBoxSize;
+	private boolean mEstimateBoxSize;
+	private float mScale = 1;
+	private Timings mLastTimings;
+	private final List<Point[]> mCodeRegions = new ArrayList<>();
+	private DebugFrameSink mDebugFrameSink;
+	private ProgressListener mProgressListener;
+	private int mProgressBatchSize;
+
+	/**
+	 * Receives un-ticked boxes as they are found, before detection has finished.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called on the detection thread with each batch of un-ticked boxes, in the order they are found (so the
+		 * batches together contain the same boxes as the final result).
+		 */
+		void onUntickedBoxesFound(DetectionResult batch);
+	}
+
+	/**
+	 * @param boxSize the expected size (in pixels) of the outer edge of a tick box - if box size estimation is
+	 *                enabled, this is only used when there are not enough boxes on the image to estimate from
+	 */
+	public TickBoxDetector(float boxSize) {
+		mBoxSize = boxSize;
+	}
+
+	public float getBoxSize() {
+		return mBoxSize;
+	}
+
+	/**
+	 * Estimate the box size from the image (see {@link BoxSizeEstimator}) rather than relying on the size passed to
+	 * the constructor. This costs an extra thresholding and contour pass, but means that boxes are still found when
+	 * the form's scale does not match the expected box size (e.g., because of a different QR code version).
+	 */
+	public void setEstimateBoxSize(boolean estimateBoxSize) {
+		mEstimateBoxSize = estimateBoxSize;
+	}
+
+	/**
+	 * Detect boxes on a downscaled copy of the image, which is much faster (detection time is roughly proportional to
+	 * the number of pixels). The box size and QR code areas are scaled to match, and the results are returned at the
+	 * original image's scale. See {@link DetectionCostModel} for choosing a scale.
+	 *
+	 * @param scale the downscale factor, from 0 (exclusive) to 1 (i.e., the original size, which is the default)
+	 */
+	public void setScale(float scale) {
+		mScale = Math.max(Float.MIN_VALUE, Math.min(1, scale));
+	}
+
+	public float getScale() {
+		return mScale;
+	}
+
+	/**
+	 * @return the stage timings of the most recent call to {@link #findUntickedBoxes(Mat)}, or null if it has not
+	 * been called
+	 */
+	public Timings getLastTimings() {
+		return mLastTimings;
+	}
+
+	/**
+	 * @param progressListener a listener to send un-ticked boxes to as soon as they are found; may be null
+	 * @param batchSize        the number of boxes to collect before each call (any remaining boxes are sent when
+	 *                         detection finishes)
+	 */
+	public void setProgressListener(ProgressListener progressListener, int batchSize) {
+		mProgressListener = progressListener;
+		mProgressBatchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * @param debugFrameSink a sink to send intermediate images and candidate boxes to when it is enabled; may be null
+	 */
+	public void setDebugFrameSink(DebugFrameSink debugFrameSink) {
+		mDebugFrameSink = debugFrameSink;
+	}
+
+	/**
+	 * Describes every parameter that affects the result of {@link #findUntickedBoxes(Mat)}, for use as part of a
+	 * {@link DetectionResultCache} key.
+	 */
+	public String getParameters() {
+		StringBuilder parameters = new StringBuilder("boxSize=").append(mBoxSize);
+		if (mEstimateBoxSize) {
+			parameters.append(";estimated");
+		}
+		if (mScale < 1) {
+			parameters.append(";scale=").append(mScale);
+		}
+		for (Point[] region : mCodeRegions) {
+			parameters.append(";code=");
+			for (Point point : region) {
+				parameters.append(Math.round(point.x)).append(',').append(Math.round(point.y)).append(' ');
+			}
+		}
+		return parameters.toString();
+	}
+
+	/**
+	 * Set the locations of the QR codes on the image. Their areas are blanked out before looking for boxes, as the
+	 * nested squares of QR finder and alignment patterns otherwise look very much like un-ticked boxes.
+	 *
+	 * @param codes the image positions of the points of each QR code (i.e., one array per code) - the first three
+	 *              points of each array must be the centres of its finder patterns (in any order); if there are fewer
+	 *              than three, a box-sized area around each point is blanked instead
+	 */
+	public void setCodeLocations(List<Point[]> codes) {
+		mCodeRegions.clear();
+		for (Point[] codePoints : codes) {
+			if (codePoints.length >= 3) {
+				mCodeRegions.add(getCodeRegion(codePoints[0], codePoints[1], codePoints[2]));
+			} else {
+				for (Point point : codePoints) {
+					double size = mBoxSize * 0.75f;
+					mCodeRegions.add(new Point[]{
+							new Point(point.x - size, point.y - size), new Point(point.x + size, point.y - size),
+							new Point(point.x + size, point.y + size), new Point(point.x - size, point.y + size)
+					});
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param image an RGB(A) or (preferably) single-channel greyscale image (which is not modified) - see
+	 *              {@link #toGrey(Mat)} and {@link #createLuminanceMat(byte[], int, int, int)}
+	 * @return the centre points of every un-ticked box found, and the box size used to find them
+	 */
+	public DetectionResult findUntickedBoxes(Mat image) {
+		// we look for *un-ticked* boxes, rather than ticked, as they are uniform in appearance (and hence easier to
+		// detect) - they show up as a box within a box
+		List<Point> centrePoints = new ArrayList<>();
+
+		// image adjustment - the blur is for a full-scale image, so is reduced to match when detecting at a smaller
+		// scale (otherwise it spreads box lines further relative to the box, which then seems larger than it is)
+		// blurSize must not be an even number
+		int blurSize = Math.max(3, Math.round(9 * mScale));
+		blurSize = blurSize % 2 == 0 ? blurSize + 1 : blurSize;
+		double blurSTDev = 3 * mScale;
+
+		// how similar the recognised polygon must be to its actual contour - lower is more similar
+		float outerPolygonSimilarity = 0.045f;
+		float innerPolygonSimilarity = 0.075f; // don't require as much accuracy for the inner part of the tick box
+
+		// how large the maximum internal angle can be (e.g., for checking square shape)
+		float maxOuterAngleCos = 0.3f;
+		float maxInnerAngleCos = 0.4f;
+
+		// use OpenCV to recognise boxes that have a box inside them - i.e. an un-ticked tick box
+		// see: http://stackoverflow.com/a/11427501
+		Mat bitMat = new Mat();
+		DebugFrameSink.Frame debugFrame = mDebugFrameSink != null ? mDebugFrameSink.startFrame() : null;
+
+		Timings timings = new Timings();
+		mLastTimings = timings;
+		timings.scale = mScale;
+		timings.sourcePixels = image.cols() * image.rows();
+		long stageStartTime = System.nanoTime();
+
+		// convert to grey (if necessary) *before* blurring, so the blur only needs to process one channel rather than
+		// three or four - both are linear, but each rounds to 8 bits, so pixels can differ by a grey level from
+		// blurring first (which may occasionally change a threshold decision at a box edge)
+		// alternative (less flexible): Imgproc.medianBlur(bitMat, bitMat, blurSize);
+		Mat greyMat = toGrey(image);
+		Mat scaledMat = greyMat;
+		if (mScale < 1) {
+			scaledMat = new Mat();
+			Imgproc.resize(greyMat, scaledMat, new Size(), mScale, mScale, Imgproc.INTER_AREA);
+		}
+		timings.pixels = scaledMat.cols() * scaledMat.rows();
+		stageStartTime = timings.endConvert(stageStartTime);
+
+		Imgproc.GaussianBlur(scaledMat, bitMat, new Size(blurSize, blurSize), blurSTDev, blurSTDev);
+		if (debugFrame != null) {
+			debugFrame.addStage("blurred", bitMat);
+		}
+		stageStartTime = timings.endBlur(stageStartTime);
+
+		// everything from here on is at the detection scale
+		List<Point[]> codeRegions = getScaledCodeRegions();
+
+		// the box size determines the size limits for boxes and the threshold window, so must be known from here on
+		float boxSize = mBoxSize * mScale;
+		if (mEstimateBoxSize) {
+			timings.estimateWindow = BoxSizeEstimator.getThresholdWindow(bitMat.cols(), bitMat.rows());
+			float estimatedBoxSize = BoxSizeEstimator.estimateBoxSize(bitMat, codeRegions);
+			if (estimatedBoxSize > 0) {
+				boxSize = estimatedBoxSize;
+			}
+			stageStartTime = timings.endEstimate(stageStartTime);
+		}
+		if (boxSize <= 0) {
+			CoreLog.d(TAG, "No box size given or estimated - not searching for tick boxes");
+			bitMat.release();
+			if (debugFrame != null) {
+				debugFrame.finish(scaledMat);
+			}
+			releaseIntermediate(image, greyMat, scaledMat);
+			return new DetectionResult(centrePoints, 0);
+		}
+		CoreLog.d(TAG, "Searching for tick boxes of " + boxSize + " size (at " + mScale + " scale)");
+
+		int minimumOuterBoxArea = (int) Math.round(Math.pow(boxSize, 2));
+		int maximumOuterBoxArea = (int) Math.round(Math.pow(boxSize * 1.35f, 2));
+		int minimumInnerBoxArea = (int) Math.round(Math.pow(boxSize * 0.5f, 2));
+
+		// adaptiveThresholdSize must not be an even number
+		int adaptiveThresholdSize = Math.round(boxSize * 3); // (oddness ensured below)
+		int adaptiveThresholdC = 4; // value to add to the mean (can be negative or zero)
+		adaptiveThresholdSize = adaptiveThresholdSize % 2 == 0 ? adaptiveThresholdSize + 1 : adaptiveThresholdSize;
+		timings.thresholdWindow = adaptiveThresholdSize;
+
+		// perform adaptive thresholding to detect edges
+		// alternative (slower): Imgproc.Canny(bitMat, bitMat, 10, 20, 3, false);
+		Imgproc.adaptiveThreshold(bitMat, bitMat, 255, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, Imgproc.THRESH_BINARY,
+				adaptiveThresholdSize, adaptiveThresholdC);
+
+		// blank out the QR codes (i.e., make them part of the background) so their contours are never produced
+		for (Point[] region : codeRegions) {
+			Imgproc.fillConvexPoly(bitMat, new MatOfPoint(region), new Scalar(255));
+		}
+		if (debugFrame != null) {
+			debugFrame.addStage("threshold", bitMat); // (before findContours, which modifies its input)
+		}
+		stageStartTime = timings.endThreshold(stageStartTime);
+
+		// get the contours in the image, and their hierarchy
+		Mat hierarchyMat = new Mat();
+		List<MatOfPoint> contours = new ArrayList<>();
+		Imgproc.findContours(bitMat, contours, hierarchyMat, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+
+		// parse the contours and look for a box containing another box, with similar enough sizes
+		int numContours = contours.size();
+		ArrayList<Integer> searchedContours = new ArrayList<>();
+		List<Point> progressBatch = new ArrayList<>();
+		CoreLog.d(TAG, "Found " + numContours + " possible tick box areas");
+		if (numContours > 0 && !hierarchyMat.empty()) {
+			for (int i = 0; i < numContours; i++) {
+
+				// the original detected contour
+				MatOfPoint boxPoints = contours.get(i);
+
+				// hierarchy key: 0 = next sibling num, 1 = previous sibling num, 2 = first child num, 3 = parent num
+				int childBox = (int) hierarchyMat.get(0, i)[2]; // usually the largest child (as we're doing RETR_TREE)
+				if (childBox == -1) { // we only want elements that have children
+					continue;
+				} else {
+					if (searchedContours.contains(childBox)) {
+						if (DEBUG) {
+							CoreLog.d(TAG, "Ignoring duplicate box at first stage: " + childBox);
+						}
+						continue;
+					} else {
+						searchedContours.add(childBox);
+					}
+				}
+
+				// discard smaller (i.e. noise) outer box areas as soon as possible for speed
+				// used to do Imgproc.isContourConvex(outerPoints) later, but the angle check covers this, so no need
+				double originalArea = Math.abs(Imgproc.contourArea(boxPoints));
+				if (originalArea < minimumOuterBoxArea) {
+					// if (DEBUG) {
+					// CoreLog.d(TAG, "Outer box too small");
+					// }
+					continue;
+				}
+				if (originalArea > maximumOuterBoxArea) {
+					// if (DEBUG) {
+					// CoreLog.d(TAG, "Outer box too big");
+					// }
+					continue;
+				}
+
+				// simplify the contours of the outer box - we want to detect four-sided shapes only
+				MatOfPoint2f boxPoints2f = new MatOfPoint2f(boxPoints.toArray()); // Point2f for approxPolyDP
+				Imgproc.approxPolyDP(boxPoints2f, boxPoints2f, outerPolygonSimilarity * Imgproc.arcLength(boxPoints2f,
+						true), true); // simplify the contour
+				if (boxPoints2f.height() != 4) { // height is number of points
+					if (debugFrame != null) {
+						debugFrame.addCandidate(boxPoints2f.toArray(), false);
+					}
+					if (DEBUG) {
+						CoreLog.d(TAG, "Outer box not 4 points");
+					}
+					continue;
+				}
+
+				// check that the simplified outer box is approximately a square, angle-wise
+				Point[] boxPointsArray = boxPoints2f.toArray();
+				double maxCosine = 0;
+				for (int j = 0; j < 4; j++) {
+					Point pL = boxPointsArray[j];
+					Point pIntersect = boxPointsArray[(j + 1) % 4];
+					Point pR = boxPointsArray[(j + 2) % 4];
+					getLineAngle(pL, pIntersect, pR);
+					maxCosine = Math.max(maxCosine, getLineAngle(pL, pIntersect, pR));
+				}
+				if (maxCosine > maxOuterAngleCos) {
+					if (debugFrame != null) {
+						debugFrame.addCandidate(boxPointsArray, false);
+					}
+					if (DEBUG) {
+						CoreLog.d(TAG, "Outer angles not square enough");
+					}
+					continue;
+				}
+
+				// check that the simplified outer box is approximately a square, line length-wise
+				double minLine = Double.MAX_VALUE;
+				double maxLine = 0;
+				for (int p = 1; p < 4; p++) {
+					Point p1 = boxPointsArray[p - 1];
+					Point p2 = boxPointsArray[p];
+					double xd = p1.x - p2.x;
+					double yd = p1.y - p2.y;
+					double lineLength = Math.sqrt((xd * xd) + (yd * yd));
+					minLine = Math.min(minLine, lineLength);
+					maxLine = Math.max(maxLine, lineLength);
+				}
+				if (maxLine - minLine > minLine) {
+					if (debugFrame != null) {
+						debugFrame.addCandidate(boxPointsArray, false);
+					}
+					if (DEBUG) {
+						CoreLog.d(TAG, "Outer lines not square enough");
+					}
+					continue;
+				}
+
+				// log the outer box if debugging
+				Point[] outerBoxPointsArray = boxPointsArray;
+				if (DEBUG) {
+					CoreLog.d(TAG, "Potential tick box: " + boxPoints2f.size() + ", " +
+							"area: " + Math.abs(Imgproc.contourArea(new MatOfPoint(boxPointsArray))) + " (min:" +
+							minimumOuterBoxArea + ", max:" + maximumOuterBoxArea + ")");
+				}
+
+				// loop through the children - they should be in descending size order, but sometimes this is wrong
+				boolean wrongBox = false;
+				while (true) {
+					if (DEBUG) {
+						CoreLog.d(TAG, "Looping with box: " + childBox);
+					}
+
+					// we've previously tried a child - try the next one
+					// key: 0 = next sibling num, 1 = previous sibling num, 2 = first child num, 3 = parent num
+					if (wrongBox) {
+						childBox = (int) hierarchyMat.get(0, childBox)[0];
+						if (childBox == -1) {
+							if (debugFrame != null) {
+								debugFrame.addCandidate(outerBoxPointsArray, false); // no suitable inner box
+							}
+							break;
+						}
+						if (searchedContours.contains(childBox)) {
+							if (DEBUG) {
+								CoreLog.d(TAG, "Ignoring duplicate box at loop stage: " + childBox);
+							}
+							break;
+						} else {
+							searchedContours.add(childBox);
+						}
+						//noinspection UnusedAssignment
+						wrongBox = false;
+					}
+
+					// perhaps this is the outer box - check its child has no children itself
+					// (removed so tiny children (i.e. noise) don't mean we mis-detect an un-ticked box as ticked)
+					// if (hierarchyMat.get(0, childBox)[2] != -1) {
+					// continue;
+					// }
+
+					// check the size of the child box is large enough
+					boxPoints = contours.get(childBox);
+					originalArea = Math.abs(Imgproc.contourArea(boxPoints));
+					if (originalArea < minimumInnerBoxArea) {
+						if (DEBUG) {
+							CoreLog.d(TAG, "Inner box too small");
+						}
+						wrongBox = true;
+						continue;
+					}
+
+					// simplify the contours of the inner box - again, we want four-sided shapes only
+					boxPoints2f = new MatOfPoint2f(boxPoints.toArray());
+					Imgproc.approxPolyDP(boxPoints2f, boxPoints2f, innerPolygonSimilarity * Imgproc.arcLength
+							(boxPoints2f, true), true);
+					if (boxPoints2f.height() != 4) { // height is number of points
+						if (debugFrame != null) {
+							debugFrame.addCandidate(boxPoints2f.toArray(), false);
+						}
+						CoreLog.d(TAG, "Inner box fewer than 4 points"); // TODO: allow > 4 for low quality images?
+						wrongBox = true;
+						continue;
+					}
+
+					// check that the simplified inner box is approximately a square, angle-wise
+					// higher tolerance because noise means if we get several inners, the box may not be quite square
+					boxPointsArray = boxPoints2f.toArray();
+					maxCosine = 0;
+					for (int j = 0; j < 4; j++) {
+						Point pL = boxPointsArray[j];
+						Point pIntersect = boxPointsArray[(j + 1) % 4];
+						Point pR = boxPointsArray[(j + 2) % 4];
+						getLineAngle(pL, pIntersect, pR);
+						maxCosine = Math.max(maxCosine, getLineAngle(pL, pIntersect, pR));
+					}
+					if (maxCosine > maxInnerAngleCos) {
+						if (debugFrame != null) {
+							debugFrame.addCandidate(boxPointsArray, false);
+						}
+						CoreLog.d(TAG, "Inner angles not square enough");
+						wrongBox = true;
+						continue;
+					}
+
+					// this is probably an inner box - log if debugging
+					if (DEBUG) {
+						CoreLog.d(TAG, "Un-ticked inner box: " + boxPoints2f.size() + ", " +
+								"area: " + Math.abs(Imgproc.contourArea(new MatOfPoint2f(boxPointsArray))) + " (min: "
+								+ minimumInnerBoxArea + ")");
+					}
+
+					// find the inner box centre
+					double centreX = (boxPointsArray[0].x + boxPointsArray[1].x +
+							boxPointsArray[2].x + boxPointsArray[3].x) / 4f;
+					double centreY = (boxPointsArray[0].y + boxPointsArray[1].y +
+							boxPointsArray[2].y + boxPointsArray[3].y) / 4f;
+
+					// save the outer and inner boxes if debugging
+					if (debugFrame != null) {
+						debugFrame.addCandidate(outerBoxPointsArray, true);
+						debugFrame.addCandidate(boxPointsArray, true);
+					}
+
+					// add to the list of boxes to check (at the original image's scale)
+					Point centrePoint = toSourcePoint(centreX, centreY);
+					centrePoints.add(centrePoint);
+					if (mProgressListener != null) {
+						progressBatch.add(centrePoint.clone());
+						if (progressBatch.size() >= mProgressBatchSize) {
+							mProgressListener.onUntickedBoxesFound(new DetectionResult(progressBatch, boxSize /
+									mScale));
+							progressBatch = new ArrayList<>();
+						}
+					}
+					break;
+				}
+			}
+		}
+
+		if (mProgressListener != null && !progressBatch.isEmpty()) {
+			mProgressListener.onUntickedBoxesFound(new DetectionResult(progressBatch, boxSize / mScale));
+		}
+		hierarchyMat.release();
+		bitMat.release();
+		timings.endContours(stageStartTime);
+
+		if (debugFrame != null) {
+			debugFrame.finish(scaledMat); // (candidates are at the detection scale)
+		}
+		releaseIntermediate(image, greyMat, scaledMat);
+
+		CoreLog.d(TAG, "Found " + centrePoints.size() + " un-ticked boxes (" + timings + ")");
+		return new DetectionResult(centrePoints, boxSize / mScale);
+	}
+
+	private List<Point[]> getScaledCodeRegions() {
+		if (mScale == 1) {
+			return mCodeRegions;
+		}
+		List<Point[]> scaledRegions = new ArrayList<>(mCodeRegions.size());
+		for (Point[] region : mCodeRegions) {
+			Point[] scaledRegion = new Point[region.length];
+			for (int i = 0; i < region.length; i++) {
+				scaledRegion[i] = new Point(region[i].x * mScale, region[i].y * mScale);
+			}
+			scaledRegions.add(scaledRegion);
+		}
+		return scaledRegions;
+	}
+
+	/**
+	 * @return the position on the original image of a point on the (possibly downscaled) detection image
+	 */
+	private Point toSourcePoint(double x, double y) {
+		if (mScale == 1) {
+			return new Point(x, y);
+		}
+		// (pixel centres, rather than corners, are aligned when resizing)
+		return new Point((x + 0.5) / mScale - 0.5, (y + 0.5) / mScale - 0.5);
+	}
+
+	private static void releaseIntermediate(Mat image, Mat greyMat, Mat scaledMat) {
+		if (scaledMat != greyMat) {
+			scaledMat.release();
+		}
+		if (greyMat != image) {
+			greyMat.release();
+		}
+	}
+
+	/**
+	 * How long each stage of a detection pass took, and the amount of work it did (pixels processed, and threshold
+	 * window sizes) - see {@link DetectionCostModel}.
+	 */
+	public static class Timings {
+		public float scale;
+		public int sourcePixels; // the original image
+		public int pixels; // the (possibly downscaled) detection image
+		public int estimateWindow; // 0 if the box size was not estimated
+		public int thresholdWindow;
+
+		public long convertNanos; // greyscale conversion and downscaling
+		public long blurNanos;
+		public long estimateNanos;
+		public long thresholdNanos;
+		public long contourNanos; // finding contours and checking them for boxes
+
+		public long getTotalNanos() {
+			return convertNanos + blurNanos + estimateNanos + thresholdNanos + contourNanos;
+		}
+
+		private long endConvert(long startTime) {
+			long endTime = System.nanoTime();
+			convertNanos = endTime - startTime;
+			return endTime;
+		}
+
+		private long endBlur(long startTime) {
+			long endTime = System.nanoTime();
+			blurNanos = endTime - startTime;
+			return endTime;
+		}
+
+		private long endEstimate(long startTime) {
+			long endTime = System.nanoTime();
+			estimateNanos = endTime - startTime;
+			return endTime;
+		}
+
+		private long endThreshold(long startTime) {
+			long endTime = System.nanoTime();
+			thresholdNanos = endTime - startTime;
+			return endTime;
+		}
+
+		private void endContours(long startTime) {
+			contourNanos = System.nanoTime() - startTime;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "scale: %.2f, convert: %.1f ms, blur: %.1f ms, estimate: %.1f ms, " +
+					"threshold: %.1f ms, contours: %.1f ms", scale, convertNanos / 1e6, blurNanos / 1e6,
+					estimateNanos / 1e6, thresholdNanos / 1e6, contourNanos / 1e6);
+		}
+	}
+
+	/**
+	 * @return the image itself if it is already single-channel, otherwise a new greyscale (8uC1) copy of it
+	 */
+	public static Mat toGrey(Mat image) {
+		if (image.channels() == 1) {
+			return image;
+		}
+		Mat greyMat = new Mat();
+		Imgproc.cvtColor(image, greyMat, image.channels() == 4 ? Imgproc.COLOR_RGBA2GRAY : Imgproc.COLOR_RGB2GRAY);
+		return greyMat;
+	}
+
+	/**
+	 * Wrap a luminance buffer as a greyscale image, without any colour decoding. For a camera preview frame in the
+	 * default NV21 (or YV12) format the luminance (Y) plane is the first (rowStride * height) bytes of the frame.
+	 *
+	 * @param luminance one byte per pixel, in rows of rowStride bytes (only the first width bytes of each are used)
+	 */
+	public static Mat createLuminanceMat(byte[] luminance, int width, int height, int rowStride) {
+		Mat frameMat = new Mat(height, rowStride, CvType.CV_8UC1);
+		frameMat.put(0, 0, luminance); // (any chroma data after the luminance plane is ignored)
+		return rowStride == width ? frameMat : frameMat.submat(0, height, 0, width);
+	}
+
+	/**
+	 * @return the corners of the area covered by the QR code with finder patterns centred at these points
+	 */
+	private static Point[] getCodeRegion(Point p1, Point p2, Point p3) {
+		// the two finder patterns furthest apart are diagonally opposite; the other is at the corner between them
+		double d12 = getDistance(p1, p2);
+		double d13 = getDistance(p1, p3);
+		double d23 = getDistance(p2, p3);
+		Point corner;
+		Point side1;
+		Point side2;
+		if (d23 >= d12 && d23 >= d13) {
+			corner = p1;
+			side1 = p2;
+			side2 = p3;
+		} else if (d13 >= d12) {
+			corner = p2;
+			side1 = p1;
+			side2 = p3;
+		} else {
+			corner = p3;
+			side1 = p1;
+			side2 = p2;
+		}
+
+		// expand the parallelogram formed by the three centres (and the implied fourth) outwards along both edges
+		double length1 = getDistance(corner, side1);
+		double length2 = getDistance(corner, side2);
+		double margin = Math.max(length1, length2) * CODE_MARGIN_FACTOR;
+		double u1x = (side1.x - corner.x) / length1 * margin;
+		double u1y = (side1.y - corner.y) / length1 * margin;
+		double u2x = (side2.x - corner.x) / length2 * margin;
+		double u2y = (side2.y - corner.y) / length2 * margin;
+		Point opposite = new Point(side1.x + side2.x - corner.x, side1.y + side2.y - corner.y);
+		return new Point[]{
+				new Point(corner.x - u1x - u2x, corner.y - u1y - u2y),
+				new Point(side1.x + u1x - u2x, side1.y + u1y - u2y),
+				new Point(opposite.x + u1x + u2x, opposite.y + u1y + u2y),
+				new Point(side2.x - u1x + u2x, side2.y - u1y + u2y)
+		};
+	}
+
+	private static double getDistance(Point p1, Point p2) {
+		double xd = p1.x - p2.x;
+		double yd = p1.y - p2.y;
+		return Math.sqrt((xd * xd) + (yd * yd));
+	}
+
+	private static double getLineAngle(Point pL, Point pIntersect, Point pR) {
+		double dx21 = pL.x - pIntersect.x;
+		double dx31 = pR.x - pIntersect.x;
+		double dy21 = pL.y - pIntersect.y;
+		double dy31 = pR.y - pIntersect.y;
+		double m12 = Math.sqrt(dx21 * dx21 + dy21 * dy21);
+		double m13 = Math.sqrt(dx31 * dx31 + dy31 * dy31);
+		return Math.abs((dx21 * dx31 + dy21 * dy31) / (m12 * m13));
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tick boxes of a page, as returned by the CodeMaker server (or stored locally in the same JSON format).
+ */
+public class TickBoxLayout {
+	public final String destination;
+	public final List<TickBox> tickBoxes;
+
+	public TickBoxLayout(String destination, List<TickBox> tickBoxes) {
+		this.destination = destination;
+		this.tickBoxes = tickBoxes;
+	}
+
+	/**
+	 * Parse a layout from the server's JSON format. Every box starts as ticked (but not yet found on the image) -
+	 * boxes are un-ticked when they are found to be empty. Boxes may optionally include their position on a specific
+	 * image as "imageX" and "imageY" (e.g., when the QR code parameters are not available); if not, their image
+	 * position is unknown (NaN) until it is set - see {@link #hasImagePositions()}.
+	 */
+	public static TickBoxLayout fromJson(JSONObject layout) throws JSONException {
+		String destination = layout.isNull("destination") ? null : layout.getString("destination");
+
+		List<TickBox> tickBoxes = new ArrayList<>();
+		JSONArray boxes = layout.getJSONArray("tickBoxes");
+		if (boxes != null && !boxes.isNull(0)) {
+			for (int i = 0; i < boxes.length(); i++) {
+				JSONObject jsonBox = boxes.getJSONObject(i);
+
+				TickBox box = new TickBox(jsonBox.getInt("x"), jsonBox.getInt("y"), jsonBox.getString("description"),
+						jsonBox.getInt("quantity"));
+				box.setImagePosition((float) jsonBox.optDouble("imageX", Double.NaN), (float) jsonBox.optDouble
+						("imageY", Double.NaN));
+				box.ticked = true; // first we assume all boxes are ticked
+				box.foundOnImage = false; // (but not yet found on the image)
+				tickBoxes.add(box);
+			}
+		}
+
+		return new TickBoxLayout(destination, tickBoxes);
+	}
+
+	/**
+	 * @return true if every box's position on the image is known (layout positions are in a different coordinate
+	 * space, so boxes can only be compared with an image once their image positions have been set)
+	 */
+	public boolean hasImagePositions() {
+		for (TickBox tickBox : tickBoxes) {
+			if (Float.isNaN(tickBox.imageX) || Float.isNaN(tickBox.imageY)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.opencv.core.Point;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares the un-ticked boxes found on an image with the tick boxes of a page layout.
+ */
+public class TickBoxMatcher {
+
+	private static final String TAG = TickBoxMatcher.class.getSimpleName();
+
+	private TickBoxMatcher() {
+	}
+
+	/**
+	 * Mark each layout box that has an un-ticked box detected close enough to its image position as found (the image
+	 * positions of the layout boxes must already have been set). QR codes are masked out before detection (see
+	 * {@link TickBoxDetector#setCodeLocations(List)}), so no detection can be a QR finder pattern.
+	 *
+	 * @param untickedBoxes the centre points of the un-ticked boxes found on the image
+	 * @param tickBoxes     the layout's tick boxes; foundOnImage is updated for every box
+	 * @param boxSize       the expected size of a tick box on the image
+	 * @return the number of layout boxes that were found on the image
+	 */
+	public static int matchUntickedBoxes(List<Point> untickedBoxes, List<TickBox> tickBoxes, float boxSize) {
+		for (TickBox tickBox : tickBoxes) {
+			tickBox.foundOnImage = false;
+		}
+		return matchAdditionalUntickedBoxes(untickedBoxes, tickBoxes, boxSize);
+	}
+
+	/**
+	 * As {@link #matchUntickedBoxes(List, List, float)}, but only considering layout boxes that have not already been
+	 * found - i.e., for matching un-ticked boxes in batches as they are detected (see
+	 * {@link TickBoxDetector#setProgressListener(TickBoxDetector.ProgressListener, int)}). Matching every batch in
+	 * turn gives exactly the same result as matching all of the boxes at once.
+	 *
+	 * @return the number of layout boxes that were newly found on the image
+	 */
+	public static int matchAdditionalUntickedBoxes(List<Point> untickedBoxes, List<TickBox> tickBoxes, float
+			boxSize) {
+		// scans the list comparing with the actual tick box positions (some could be outside the image)
+		int maximumBoxDistance = Math.round(boxSize * 0.75f);
+
+		CoreLog.d(TAG, "Searching for codes at max distance: " + maximumBoxDistance);
+
+		int foundBoxes = 0;
+		for (Point p : untickedBoxes) {
+			float minDistance = Float.MAX_VALUE;
+			TickBox assignedBox = null;
+			for (TickBox tickBox : tickBoxes) {
+				if (tickBox.foundOnImage) {
+					continue;
+				}
+
+				float boxDistance = (float) Math.sqrt(Math.pow(p.x - tickBox.imageX, 2) + Math.pow(p.y - tickBox
+						.imageY, 2));
+				if (boxDistance < maximumBoxDistance && boxDistance < minDistance) {
+					assignedBox = tickBox;
+					minDistance = boxDistance;
+				}
+			}
+			if (assignedBox != null) {
+				CoreLog.d(TAG, "Found closest box (" + assignedBox.description + ") at " + minDistance + " distance");
+				assignedBox.foundOnImage = true;
+				foundBoxes += 1;
+			} else {
+				CoreLog.d(TAG, "Couldn't find actual box for detected box at " + minDistance + " distance");
+			}
+		}
+		return foundBoxes;
+	}
+
+	/**
+	 * @param itemFormat the format of each item, with the quantity as the first argument and the description as the
+	 *                   second (e.g., "%1$d x %2$s\n")
+	 * @return the ticked items, one per line, or null if no boxes are ticked
+	 */
+	public static String getOrderText(List<TickBox> tickBoxes, String itemFormat) {
+		StringBuilder itemsBuilder = new StringBuilder();
+		for (TickBox tickBox : tickBoxes) {
+			if (tickBox.ticked) {
+				itemsBuilder.append(String.format(Locale.getDefault(), itemFormat, tickBox.quantity, tickBox
+						.description));
+			}
+		}
+		if (itemsBuilder.length() > 0) {
+			return itemsBuilder.toString();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BoxSizeEstimatorTest {
+
+	private static final int BOX_COLUMNS = 4;
+	private static final int BOX_ROWS = 3;
+
+	@BeforeClass
+	public static void loadOpenCV() {
+		TestUtilities.assumeOpenCV();
+	}
+
+	/**
+	 * @return a white page with a grid of un-ticked boxes of the given outer size (and one ticked box)
+	 */
+	private static Mat createForm(int boxSize, int lineWidth) {
+		int spacing = boxSize * 3;
+		Mat form = new Mat(spacing * (BOX_ROWS + 1), spacing * (BOX_COLUMNS + 2), CvType.CV_8UC1, new Scalar(255));
+		for (int row = 0; row < BOX_ROWS; row++) {
+			for (int column = 0; column < BOX_COLUMNS; column++) {
+				drawBox(form, spacing * (column + 1), spacing * (row + 1), boxSize, lineWidth);
+			}
+		}
+
+		// a ticked box, which is not a box within a box
+		int tickedX = spacing * (BOX_COLUMNS + 1);
+		int tickedY = spacing;
+		drawBox(form, tickedX, tickedY, boxSize, lineWidth);
+		Imgproc.line(form, new Point(tickedX, tickedY), new Point(tickedX + boxSize, tickedY + boxSize), new Scalar
+				(0), lineWidth * 2);
+		Imgproc.line(form, new Point(tickedX + boxSize, tickedY), new Point(tickedX, tickedY + boxSize), new Scalar
+				(0), lineWidth * 2);
+		return form;
+	}
+
+	private static void drawBox(Mat form, int x, int y, int boxSize, int lineWidth) {
+		// (rectangle lines are centred on the given points, so inset by half the line width to keep the outer size)
+		double inset = lineWidth / 2d;
+		Imgproc.rectangle(form, new Point(x + inset, y + inset), new Point(x + boxSize - 1 - inset, y + boxSize - 1 -
+				inset), new Scalar(0), lineWidth);
+	}
+
+	/**
+	 * @return the form blurred in the same way as TickBoxDetector (the form itself is released)
+	 */
+	private static Mat blur(Mat form) {
+		Mat blurred = new Mat();
+		Imgproc.GaussianBlur(form, blurred, new Size(9, 9), 3, 3);
+		form.release();
+		return blurred;
+	}
+
+	@Test
+	public void estimatesSizeOfBoxes() {
+		for (int boxSize : new int[]{24, 36, 60}) {
+			Mat form = blur(createForm(boxSize, Math.max(2, boxSize / 12)));
+			float estimatedSize = BoxSizeEstimator.estimateBoxSize(form, new ArrayList<Point[]>());
+			form.release();
+
+			// TickBoxDetector accepts outer boxes from 1x to 1.35x its box size
+			assertTrue("Box size " + boxSize + " estimated as " + estimatedSize, estimatedSize >= boxSize / 1.35f &&
+					estimatedSize <= boxSize);
+		}
+	}
+
+	@Test
+	public void detectorFindsEveryBoxWithEstimatedSize() {
+		int boxSize = 40;
+		Mat form = createForm(boxSize, 3);
+
+		// a very wrong expected size, which estimation must override
+		TickBoxDetector detector = new TickBoxDetector(boxSize * 3);
+		detector.setEstimateBoxSize(true);
+		DetectionResult result = detector.findUntickedBoxes(form);
+		form.release();
+
+		assertEquals(BOX_COLUMNS * BOX_ROWS, result.untickedBoxes.size());
+		assertTrue("Box size: " + result.boxSize, result.boxSize >= boxSize / 1.35f && result.boxSize <= boxSize);
+	}
+
+	@Test
+	public void detectorFindsEveryBoxAtReducedScale() {
+		// thin-lined boxes downscaled to just above the app's minimum detection box size (24 pixels) - the blur must be
+		// scaled too, or it spreads the lines so much that the estimated boxes are too large to be accepted
+		for (int boxSize : new int[]{52, 56, 60}) {
+			Mat form = createForm(boxSize, 2);
+			TickBoxDetector detector = new TickBoxDetector(boxSize);
+			detector.setEstimateBoxSize(true);
+			detector.setScale(0.5f);
+			DetectionResult result = detector.findUntickedBoxes(form);
+			form.release();
+
+			assertEquals("Box size " + boxSize + " (estimated as " + result.boxSize + ")", BOX_COLUMNS * BOX_ROWS,
+					result.untickedBoxes.size());
+
+			// (downscaling blurs edges by up to a pixel, so the estimate may be slightly larger than the actual size)
+			assertTrue("Box size: " + result.boxSize, result.boxSize >= boxSize / 1.35f && result.boxSize <= boxSize *
+					1.05f);
+		}
+	}
+
+	@Test
+	public void blankImageCannotBeEstimated() {
+		Mat blank = new Mat(300, 400, CvType.CV_8UC1, new Scalar(255));
+		assertEquals(0, BoxSizeEstimator.estimateBoxSize(blank, new ArrayList<Point[]>()), 0);
+		blank.release();
+	}
+
+	@Test
+	public void singleBoxCannotBeEstimated() {
+		Mat form = new Mat(200, 200, CvType.CV_8UC1, new Scalar(255));
+		drawBox(form, 80, 80, 40, 3);
+		form = blur(form);
+		assertEquals(0, BoxSizeEstimator.estimateBoxSize(form, new ArrayList<Point[]>()), 0);
+		form.release();
+	}
+
+	@Test
+	public void maskedBoxesAreIgnored() {
+		Mat form = blur(createForm(40, 3));
+		List<Point[]> maskRegions = new ArrayList<>();
+		maskRegions.add(new Point[]{
+				new Point(0, 0), new Point(form.cols(), 0), new Point(form.cols(), form.rows()), new Point(0, form
+				.rows())
+		});
+		assertEquals(0, BoxSizeEstimator.estimateBoxSize(form, maskRegions), 0);
+		form.release();
+	}
+
+	@Test
+	public void thresholdWindowIsOdd() {
+		assertEquals(31, BoxSizeEstimator.getThresholdWindow(400, 300));
+		assertEquals(41, BoxSizeEstimator.getThresholdWindow(400, 400));
+		assertEquals(3, BoxSizeEstimator.getThresholdWindow(10, 10));
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DetectionCostModelTest {
+
+	private static final int WIDTH = 2000;
+	private static final int HEIGHT = 1500;
+	private static final float MINIMUM_BOX_SIZE = 12;
+
+	/**
+	 * @return the timings of a full-scale detection pass at 1 ns per unit of work for every stage
+	 */
+	private static TickBoxDetector.Timings createTimings(float boxSize) {
+		TickBoxDetector.Timings timings = new TickBoxDetector.Timings();
+		timings.scale = 1;
+		timings.sourcePixels = WIDTH * HEIGHT;
+		timings.pixels = WIDTH * HEIGHT;
+		timings.estimateWindow = 41;
+		timings.thresholdWindow = Math.round(boxSize) | 1;
+		timings.convertNanos = timings.sourcePixels;
+		timings.blurNanos = timings.pixels;
+		timings.estimateNanos = (long) timings.pixels * timings.estimateWindow;
+		timings.thresholdNanos = (long) timings.pixels * timings.thresholdWindow;
+		timings.contourNanos = timings.pixels;
+		return timings;
+	}
+
+	@Test
+	public void firstScanIsAtFullScale() {
+		DetectionCostModel costModel = new DetectionCostModel(MINIMUM_BOX_SIZE);
+		assertEquals(0, costModel.predictBoxSize(40), 0);
+		assertEquals(1, costModel.chooseScale(WIDTH, HEIGHT, 40, 1), 0);
+	}
+
+	@Test
+	public void measurementIsPredicted() {
+		DetectionCostModel costModel = new DetectionCostModel(MINIMUM_BOX_SIZE);
+		TickBoxDetector.Timings timings = createTimings(30);
+		costModel.addMeasurement(timings, 30, 60);
+
+		assertEquals(1, costModel.getMeasurementCount());
+		assertEquals(30, costModel.predictBoxSize(60), 0.001);
+		assertEquals(timings.getTotalNanos(), costModel.predictNanos(WIDTH * HEIGHT, 30, 1), timings
+				.getTotalNanos() * 0.001);
+	}
+
+	@Test
+	public void emptyMeasurementIsIgnored() {
+		DetectionCostModel costModel = new DetectionCostModel(MINIMUM_BOX_SIZE);
+		costModel.addMeasurement(createTimings(30), 0, 60);
+		costModel.addMeasurement(createTimings(30), 30, 0);
+		assertEquals(0, costModel.getMeasurementCount());
+	}
+
+	@Test
+	public void scaleKeepsWithinBudget() {
+		DetectionCostModel costModel = new DetectionCostModel(MINIMUM_BOX_SIZE);
+		TickBoxDetector.Timings timings = createTimings(60);
+		costModel.addMeasurement(timings, 60, 60);
+
+		long budget = timings.getTotalNanos() / 3;
+		float scale = costModel.chooseScale(WIDTH, HEIGHT, 60, budget);
+		assertTrue("Scale: " + scale, scale < 1);
+		assertTrue(costModel.predictNanos(WIDTH * HEIGHT, 60, scale) <= budget);
+		assertTrue(costModel.predictNanos(WIDTH * HEIGHT, 60, scale + 0.05f) > budget); // (the largest that fits)
+
+		assertEquals(1, costModel.chooseScale(WIDTH, HEIGHT, 60, timings.getTotalNanos() * 2), 0);
+	}
+
+	@Test
+	public void scaleKeepsPredictedBoxSizeAboveMinimum() {
+		DetectionCostModel costModel = new DetectionCostModel(MINIMUM_BOX_SIZE);
+		costModel.addMeasurement(createTimings(24), 24, 48); // (boxes are half of the point spacing)
+
+		// an impossible budget - the scale is limited so that the predicted 24 pixel boxes become 12 pixels
+		assertEquals(0.5, costModel.chooseScale(WIDTH, HEIGHT, 48, 1), 0.001);
+
+		// boxes that are predicted to be smaller than the minimum are always detected at full scale
+		assertEquals(1, costModel.chooseScale(WIDTH, HEIGHT, 20, 1), 0);
+	}
+
+	@Test
+	public void boxSizeRatioIsSmoothed() {
+		DetectionCostModel costModel = new DetectionCostModel(MINIMUM_BOX_SIZE);
+		costModel.addMeasurement(createTimings(30), 30, 60);
+		costModel.addMeasurement(createTimings(40), 40, 60);
+		float boxSize = costModel.predictBoxSize(60);
+		assertTrue("Box size: " + boxSize, boxSize > 30 && boxSize < 40);
+	}
+
+	@Test
+	public void modelIsRestoredFromString() {
+		DetectionCostModel costModel = new DetectionCostModel(MINIMUM_BOX_SIZE);
+		costModel.addMeasurement(createTimings(30), 30, 60);
+		costModel.addMeasurement(createTimings(33), 33, 62);
+
+		DetectionCostModel restoredModel = DetectionCostModel.fromString(costModel.toString(), MINIMUM_BOX_SIZE);
+		assertEquals(costModel.toString(), restoredModel.toString());
+		assertEquals(2, restoredModel.getMeasurementCount());
+		assertEquals(costModel.predictBoxSize(55), restoredModel.predictBoxSize(55), 0.001);
+		for (float scale : new float[]{1, 0.7f, 0.4f}) {
+			long nanos = costModel.predictNanos(WIDTH * HEIGHT, 31, scale);
+			assertEquals(nanos, restoredModel.predictNanos(WIDTH * HEIGHT, 31, scale), nanos * 0.001);
+		}
+		assertEquals(costModel.chooseScale(WIDTH, HEIGHT, 60, 1000000), restoredModel.chooseScale(WIDTH, HEIGHT,
+				60, 1000000), 0.001); // (values are stored to 6 significant figures)
+	}
+
+	@Test
+	public void invalidStringGivesNewModel() {
+		String newModel = new DetectionCostModel(MINIMUM_BOX_SIZE).toString();
+		assertEquals(newModel, DetectionCostModel.fromString(null, MINIMUM_BOX_SIZE).toString());
+		assertEquals(newModel, DetectionCostModel.fromString("", MINIMUM_BOX_SIZE).toString());
+		assertEquals(newModel, DetectionCostModel.fromString("2;1;x;1;1;1;1;1;1;1", MINIMUM_BOX_SIZE).toString());
+
+		// a model saved by an older version, without the box size ratio
+		assertEquals(newModel, DetectionCostModel.fromString("1;5;1;1;1;1;1;41;1.5", MINIMUM_BOX_SIZE).toString());
+	}
+}
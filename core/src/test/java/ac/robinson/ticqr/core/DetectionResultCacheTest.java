@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DetectionResultCacheTest {
+
+	private File mDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = TestUtilities.createTemporaryDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		TestUtilities.deleteRecursively(mDirectory);
+	}
+
+	private static DetectionResult createResult(float boxSize, int count) {
+		List<Point> untickedBoxes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			untickedBoxes.add(new Point(10.25 * i, 20.5 * i + 1));
+		}
+		return new DetectionResult(untickedBoxes, boxSize);
+	}
+
+	private static void assertResultEquals(DetectionResult expected, DetectionResult actual) {
+		assertEquals(expected.boxSize, actual.boxSize, 0);
+		assertEquals(expected.untickedBoxes.size(), actual.untickedBoxes.size());
+		for (int i = 0; i < expected.untickedBoxes.size(); i++) {
+			assertEquals(expected.untickedBoxes.get(i), actual.untickedBoxes.get(i));
+		}
+	}
+
+	@Test
+	public void missReturnsNull() {
+		DetectionResultCache cache = new DetectionResultCache(4, null, 0);
+		assertNull(cache.get("missing"));
+		assertEquals(0, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void memoryHitReturnsCopy() {
+		DetectionResultCache cache = new DetectionResultCache(4, null, 0);
+		DetectionResult result = createResult(21.5f, 3);
+		cache.put("key", result);
+		result.untickedBoxes.get(0).x = -1; // (changes after caching must not affect the cache)
+
+		DetectionResult cachedResult = cache.get("key");
+		assertResultEquals(createResult(21.5f, 3), cachedResult);
+		cachedResult.untickedBoxes.clear();
+		assertResultEquals(createResult(21.5f, 3), cache.get("key"));
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void memoryCapacityRemovesLeastRecentlyUsed() {
+		DetectionResultCache cache = new DetectionResultCache(2, null, 0);
+		cache.put("a", createResult(10, 1));
+		cache.put("b", createResult(11, 1));
+		assertNotNull(cache.get("a")); // (so b is now the least recently used)
+		cache.put("c", createResult(12, 1));
+
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void diskEntriesAreReadByNewCache() {
+		DetectionResult result = createResult(17.25f, 5);
+		new DetectionResultCache(1, mDirectory, 8).put("key", result);
+
+		DetectionResultCache cache = new DetectionResultCache(1, mDirectory, 8);
+		assertResultEquals(result, cache.get("key"));
+		assertTrue(cache.getStatistics().contains("disk: 1"));
+
+		// now also in memory
+		assertResultEquals(result, cache.get("key"));
+		assertTrue(cache.getStatistics().contains("memory: 1"));
+	}
+
+	@Test
+	public void emptyResultIsCachedOnDisk() {
+		new DetectionResultCache(1, mDirectory, 8).put("key", createResult(0, 0));
+		assertResultEquals(createResult(0, 0), new DetectionResultCache(1, mDirectory, 8).get("key"));
+	}
+
+	@Test
+	public void diskCapacityIsLimited() {
+		DetectionResultCache cache = new DetectionResultCache(1, mDirectory, 3);
+		for (int i = 0; i < 6; i++) {
+			cache.put("key" + i, createResult(i + 1, i));
+		}
+		File[] files = mDirectory.listFiles();
+		assertNotNull(files);
+		assertEquals(3, files.length);
+	}
+
+	@Test
+	public void otherFilesAreKept() throws IOException {
+		File otherFile = new File(mDirectory, "other.txt");
+		assertTrue(otherFile.createNewFile());
+
+		DetectionResultCache cache = new DetectionResultCache(1, mDirectory, 2);
+		for (int i = 0; i < 4; i++) {
+			cache.put("key" + i, createResult(i + 1, i));
+		}
+		assertTrue(otherFile.exists());
+		File[] files = mDirectory.listFiles();
+		assertNotNull(files);
+		assertEquals(3, files.length); // (the capacity only counts cache entries)
+
+		cache.clear();
+		assertTrue(otherFile.exists());
+		files = mDirectory.listFiles();
+		assertNotNull(files);
+		assertEquals(1, files.length);
+	}
+
+	@Test
+	public void unreadableDiskEntryIsMiss() throws IOException {
+		new DetectionResultCache(1, mDirectory, 8).put("key", createResult(12, 2));
+		File[] files = mDirectory.listFiles();
+		assertNotNull(files);
+		assertEquals(1, files.length);
+		FileOutputStream outputStream = new FileOutputStream(files[0]);
+		outputStream.write(new byte[]{0, 0, 0, 1, 2}); // an old version, and truncated
+		outputStream.close();
+
+		DetectionResultCache cache = new DetectionResultCache(1, mDirectory, 8);
+		assertNull(cache.get("key"));
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void clearRemovesMemoryAndDiskEntries() {
+		DetectionResultCache cache = new DetectionResultCache(4, mDirectory, 8);
+		cache.put("key", createResult(12, 2));
+		cache.clear();
+
+		assertNull(cache.get("key"));
+		File[] files = mDirectory.listFiles();
+		assertNotNull(files);
+		assertEquals(0, files.length);
+	}
+
+	@Test
+	public void keyDependsOnContentAndParameters() {
+		TestUtilities.assumeOpenCV();
+		Mat image = new Mat(40, 60, CvType.CV_8UC1, new Scalar(200));
+		Mat sameImage = image.clone();
+		String key = DetectionResultCache.getKey(image, "boxSize=20.0");
+
+		assertEquals(key, DetectionResultCache.getKey(sameImage, "boxSize=20.0"));
+		assertNotEquals(key, DetectionResultCache.getKey(image, "boxSize=21.0"));
+
+		sameImage.put(39, 59, 199); // a single pixel (e.g., a tick) must change the key
+		assertNotEquals(key, DetectionResultCache.getKey(sameImage, "boxSize=20.0"));
+
+		Mat transposedImage = new Mat(60, 40, CvType.CV_8UC1, new Scalar(200));
+		assertNotEquals(key, DetectionResultCache.getKey(transposedImage, "boxSize=20.0"));
+
+		image.release();
+		sameImage.release();
+		transposedImage.release();
+	}
+}
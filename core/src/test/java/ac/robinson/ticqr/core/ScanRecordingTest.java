@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Point;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ScanRecordingTest {
+
+	private File mDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = TestUtilities.createTemporaryDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		TestUtilities.deleteRecursively(mDirectory);
+	}
+
+	private static ScanRecording createRecording() throws JSONException {
+		ScanRecording recording = new ScanRecording();
+		recording.timestamp = 1400000000000L;
+		recording.pageId = "page/1";
+		recording.codes.add(new Point[]{new Point(1, 2), new Point(3.5, 4), new Point(5, 6.25), new Point(7, 8)});
+		recording.pointSpacing = 12.5f;
+		recording.expectedBoxSize = 31.25f;
+		recording.image = new byte[]{(byte) 0x89, 'P', 'N', 'G', 0, 1, 2};
+
+		JSONObject box = new JSONObject();
+		box.put("x", 10).put("y", 20).put("imageX", 110.5).put("imageY", 220.5);
+		recording.layout = new JSONObject().put("tickBoxes", new JSONArray().put(box));
+
+		List<Point> untickedBoxes = new ArrayList<>();
+		untickedBoxes.add(new Point(110, 221));
+		recording.deviceResult = new DetectionResult(untickedBoxes, 30.5f);
+		recording.deviceDetectionMillis = 250;
+		recording.detectionScale = 0.75f;
+		return recording;
+	}
+
+	@Test
+	public void recordingIsReadBack() throws IOException, JSONException {
+		ScanRecording recording = createRecording();
+		File file = new File(mDirectory, recording.getFileName());
+		recording.write(file);
+
+		ScanRecording readRecording = ScanRecording.read(file);
+		assertEquals(recording.timestamp, readRecording.timestamp);
+		assertEquals(recording.pageId, readRecording.pageId);
+		assertEquals(1, readRecording.codes.size());
+		assertArrayEquals(recording.codes.get(0), readRecording.codes.get(0));
+		assertEquals(recording.pointSpacing, readRecording.pointSpacing, 0);
+		assertEquals(recording.expectedBoxSize, readRecording.expectedBoxSize, 0);
+		assertArrayEquals(recording.image, readRecording.image);
+		assertEquals(recording.layout.toString(), readRecording.layout.toString());
+		assertEquals(recording.deviceResult.boxSize, readRecording.deviceResult.boxSize, 0);
+		assertEquals(recording.deviceResult.untickedBoxes, readRecording.deviceResult.untickedBoxes);
+		assertEquals(recording.deviceDetectionMillis, readRecording.deviceDetectionMillis);
+		assertEquals(recording.detectionScale, readRecording.detectionScale, 0);
+	}
+
+	@Test
+	public void incompleteRecordingIsReadBack() throws IOException, JSONException {
+		// as saved straight after taking the picture, before the layout or detection result are known
+		ScanRecording recording = createRecording();
+		recording.pageId = null;
+		recording.layout = null;
+		recording.deviceResult = null;
+		File file = new File(mDirectory, recording.getFileName());
+		recording.write(file);
+
+		ScanRecording readRecording = ScanRecording.read(file);
+		assertNull(readRecording.pageId);
+		assertNull(readRecording.layout);
+		assertNull(readRecording.deviceResult);
+		assertEquals(recording.detectionScale, readRecording.detectionScale, 0);
+		assertArrayEquals(recording.image, readRecording.image);
+	}
+
+	@Test
+	public void otherFileIsRejected() throws IOException, JSONException {
+		File file = new File(mDirectory, "other.zip");
+		ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(file));
+		outputStream.putNextEntry(new ZipEntry("other.txt"));
+		outputStream.write(1);
+		outputStream.close();
+
+		try {
+			ScanRecording.read(file);
+			fail("Read a file that is not a recording");
+		} catch (IOException ignored) {
+		}
+	}
+
+	@Test
+	public void unsupportedVersionIsRejected() throws IOException, JSONException {
+		File file = new File(mDirectory, "future" + ScanRecording.FILE_EXTENSION);
+		ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(file));
+		outputStream.putNextEntry(new ZipEntry("image.png"));
+		outputStream.write(1);
+		outputStream.putNextEntry(new ZipEntry("scan.json"));
+		outputStream.write("{\"version\":1000}".getBytes("UTF-8"));
+		outputStream.close();
+
+		try {
+			ScanRecording.read(file);
+			fail("Read a recording with an unsupported version");
+		} catch (IOException ignored) {
+		}
+	}
+
+	@Test
+	public void fileNameIsSafe() throws JSONException {
+		ScanRecording recording = createRecording();
+		assertEquals("1400000000000-page_1" + ScanRecording.FILE_EXTENSION, recording.getFileName());
+		recording.pageId = null;
+		assertEquals("1400000000000-unknown" + ScanRecording.FILE_EXTENSION, recording.getFileName());
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.junit.Assume;
+import org.opencv.core.Core;
+
+import java.io.File;
+import java.io.IOException;
+
+final class TestUtilities {
+
+	private static Boolean sOpenCVLoaded;
+
+	private TestUtilities() {
+	}
+
+	/**
+	 * Skip the calling test (or class, from a @BeforeClass method) if the desktop OpenCV native library is not
+	 * available - see core/build.gradle.
+	 */
+	static synchronized void assumeOpenCV() {
+		if (sOpenCVLoaded == null) {
+			try {
+				System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+				sOpenCVLoaded = true;
+			} catch (UnsatisfiedLinkError e) {
+				sOpenCVLoaded = false;
+			}
+		}
+		Assume.assumeTrue(Core.NATIVE_LIBRARY_NAME + " is not available", sOpenCVLoaded);
+	}
+
+	static File createTemporaryDirectory() throws IOException {
+		File directory = File.createTempFile("ticqr", "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Unable to create " + directory.getAbsolutePath());
+		}
+		return directory;
+	}
+
+	static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+}
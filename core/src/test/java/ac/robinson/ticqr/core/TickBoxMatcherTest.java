@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.core;
+
+import org.junit.Test;
+import org.opencv.core.Point;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TickBoxMatcherTest {
+
+	private static final float BOX_SIZE = 20;
+
+	/**
+	 * @return a grid of layout boxes whose image positions are close together, so that some detections are within
+	 * matching distance of more than one box
+	 */
+	private static List<TickBox> createLayout() {
+		List<TickBox> tickBoxes = new ArrayList<>();
+		for (int row = 0; row < 6; row++) {
+			for (int column = 0; column < 5; column++) {
+				TickBox tickBox = new TickBox(column, row, "Item " + row + "-" + column, 1);
+				tickBox.setImagePosition(column * BOX_SIZE * 1.2f, row * BOX_SIZE * 1.2f);
+				tickBoxes.add(tickBox);
+			}
+		}
+		return tickBoxes;
+	}
+
+	/**
+	 * @return detections near some of the layout boxes (including duplicates and spurious detections far from any box)
+	 */
+	private static List<Point> createDetections(List<TickBox> tickBoxes, Random random) {
+		List<Point> untickedBoxes = new ArrayList<>();
+		for (TickBox tickBox : tickBoxes) {
+			int copies = random.nextInt(3); // (0: ticked; 2: detected twice)
+			for (int i = 0; i < copies; i++) {
+				untickedBoxes.add(new Point(tickBox.imageX + (random.nextDouble() - 0.5) * BOX_SIZE * 1.4, tickBox
+						.imageY + (random.nextDouble() - 0.5) * BOX_SIZE * 1.4));
+			}
+		}
+		untickedBoxes.add(new Point(-100, -100));
+		untickedBoxes.add(new Point(1000, 50));
+		Collections.shuffle(untickedBoxes, random);
+		return untickedBoxes;
+	}
+
+	private static boolean[] getFound(List<TickBox> tickBoxes) {
+		boolean[] found = new boolean[tickBoxes.size()];
+		for (int i = 0; i < found.length; i++) {
+			found[i] = tickBoxes.get(i).foundOnImage;
+		}
+		return found;
+	}
+
+	@Test
+	public void boxesAreMatchedWithinDistance() {
+		List<TickBox> tickBoxes = createLayout();
+		List<Point> untickedBoxes = new ArrayList<>();
+		untickedBoxes.add(new Point(tickBoxes.get(0).imageX + 3, tickBoxes.get(0).imageY - 2));
+		untickedBoxes.add(new Point(tickBoxes.get(4).imageX + BOX_SIZE, tickBoxes.get(4).imageY)); // (too far)
+		// between the first two boxes - the first has already been found, so this goes to the second
+		untickedBoxes.add(new Point((tickBoxes.get(0).imageX + tickBoxes.get(1).imageX) / 2, tickBoxes.get(0).imageY));
+
+		assertEquals(2, TickBoxMatcher.matchUntickedBoxes(untickedBoxes, tickBoxes, BOX_SIZE));
+		assertTrue(tickBoxes.get(0).foundOnImage);
+		assertTrue(tickBoxes.get(1).foundOnImage);
+		assertFalse(tickBoxes.get(4).foundOnImage);
+	}
+
+	@Test
+	public void matchingResetsPreviousResult() {
+		List<TickBox> tickBoxes = createLayout();
+		for (TickBox tickBox : tickBoxes) {
+			tickBox.foundOnImage = true;
+		}
+		assertEquals(0, TickBoxMatcher.matchUntickedBoxes(new ArrayList<Point>(), tickBoxes, BOX_SIZE));
+		for (TickBox tickBox : tickBoxes) {
+			assertFalse(tickBox.foundOnImage);
+		}
+	}
+
+	@Test
+	public void batchesMatchAsWholeResult() {
+		Random random = new Random(42);
+		for (int trial = 0; trial < 50; trial++) {
+			List<TickBox> tickBoxes = createLayout();
+			List<Point> untickedBoxes = createDetections(tickBoxes, random);
+			int foundBoxes = TickBoxMatcher.matchUntickedBoxes(untickedBoxes, tickBoxes, BOX_SIZE);
+			boolean[] expectedFound = getFound(tickBoxes);
+
+			for (int batchSize : new int[]{1, 3, 8}) {
+				List<TickBox> batchTickBoxes = createLayout();
+				int batchFoundBoxes = TickBoxMatcher.matchUntickedBoxes(new ArrayList<Point>(), batchTickBoxes,
+						BOX_SIZE);
+				for (int start = 0; start < untickedBoxes.size(); start += batchSize) {
+					List<Point> batch = untickedBoxes.subList(start, Math.min(start + batchSize, untickedBoxes.size()));
+					batchFoundBoxes += TickBoxMatcher.matchAdditionalUntickedBoxes(batch, batchTickBoxes, BOX_SIZE);
+				}
+
+				assertEquals(foundBoxes, batchFoundBoxes);
+				boolean[] found = getFound(batchTickBoxes);
+				for (int i = 0; i < found.length; i++) {
+					assertEquals("Trial " + trial + ", batch size " + batchSize + ", box " + i, expectedFound[i],
+							found[i]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void orderTextListsTickedBoxes() {
+		List<TickBox> tickBoxes = createLayout();
+		assertNull(TickBoxMatcher.getOrderText(tickBoxes, "%1$d x %2$s\n"));
+
+		tickBoxes.get(3).ticked = true;
+		tickBoxes.get(12).ticked = true;
+		assertEquals("1 x Item 0-3\n1 x Item 2-2\n", TickBoxMatcher.getOrderText(tickBoxes, "%1$d x %2$s\n"));
+	}
+}
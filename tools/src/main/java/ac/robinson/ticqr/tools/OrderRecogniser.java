@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.tools;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import java.util.List;
+
+import ac.robinson.ticqr.core.DetectionResult;
+import ac.robinson.ticqr.core.DetectionResultCache;
+import ac.robinson.ticqr.core.TickBox;
+import ac.robinson.ticqr.core.TickBoxDetector;
+import ac.robinson.ticqr.core.TickBoxLayout;
+import ac.robinson.ticqr.core.TickBoxMatcher;
+
+/**
+ * Runs the same steps as the app (TickBoxImageParserTask, then verifyBoxes and getEmailMessage) on a desktop JVM:
+ * detect the un-ticked boxes, match them with the page layout, and list the boxes that remain ticked.
+ */
+class OrderRecogniser {
+
+	static final String ORDER_ITEM_FORMAT = "%1$d \u00d7 %2$s\n"; // the same as the app's email_item string
+
+	private final DetectionResultCache mResultCache;
+
+	/**
+	 * @param resultCache a cache of previous detection results; may be null
+	 */
+	OrderRecogniser(DetectionResultCache resultCache) {
+		mResultCache = resultCache;
+	}
+
+	/**
+	 * @param image      the page image (RGB(A) or greyscale)
+	 * @param boxSize    the expected size of a tick box on the image - only used if it cannot be estimated from the
+	 *                   image (0 for no fallback, in which case the result's box size will be 0 if estimation fails)
+	 * @param scale      the scale to detect at (see TickBoxDetector.setScale()) - 1 for the full resolution
+	 * @param layout     the page layout, with every box's image position set (see TickBoxLayout.hasImagePositions());
+	 *                   or null to only return the detected boxes
+	 * @param codes      the image positions of the points of each QR code, to be masked out (may be empty)
+	 */
+	Result recognise(Mat image, float boxSize, float scale, TickBoxLayout layout, List<Point[]> codes) {
+		Result result = new Result();
+		long startTime = System.nanoTime();
+
+		TickBoxDetector detector = new TickBoxDetector(boxSize);
+		detector.setEstimateBoxSize(true);
+		detector.setScale(scale);
+		detector.setCodeLocations(codes);
+		String cacheKey = null;
+		DetectionResult detectionResult = null;
+		if (mResultCache != null) {
+			cacheKey = DetectionResultCache.getKey(image, detector.getParameters());
+			detectionResult = mResultCache.get(cacheKey);
+			result.cached = detectionResult != null;
+		}
+		if (detectionResult == null) {
+			detectionResult = detector.findUntickedBoxes(image);
+			if (mResultCache != null) {
+				mResultCache.put(cacheKey, detectionResult);
+			}
+		}
+		result.untickedBoxes = detectionResult.untickedBoxes;
+		result.boxSize = detectionResult.boxSize;
+		long detectedTime = System.nanoTime();
+		result.detectionNanos = detectedTime - startTime;
+
+		if (layout != null && result.boxSize > 0) {
+			TickBoxMatcher.matchUntickedBoxes(result.untickedBoxes, layout.tickBoxes, result.boxSize);
+
+			// boxes that are not found are ticked, unless they are outside the image
+			for (TickBox tickBox : layout.tickBoxes) {
+				boolean onImage = tickBox.imageX >= 0 && tickBox.imageY >= 0 && tickBox.imageX < image.cols() &&
+						tickBox.imageY < image.rows();
+				tickBox.ticked = onImage && !tickBox.foundOnImage;
+			}
+			result.layout = layout;
+			result.orderText = TickBoxMatcher.getOrderText(layout.tickBoxes, ORDER_ITEM_FORMAT);
+		}
+		result.matchingNanos = System.nanoTime() - detectedTime;
+
+		return result;
+	}
+
+	static class Result {
+		List<Point> untickedBoxes;
+		float boxSize;
+		boolean cached;
+		TickBoxLayout layout;
+		String orderText;
+
+		long detectionNanos;
+		long matchingNanos;
+
+		JSONObject toJson() throws JSONException {
+			JSONObject json = new JSONObject();
+
+			JSONArray untickedJson = new JSONArray();
+			for (Point point : untickedBoxes) {
+				JSONObject pointJson = new JSONObject();
+				pointJson.put("x", point.x);
+				pointJson.put("y", point.y);
+				untickedJson.put(pointJson);
+			}
+			json.put("untickedBoxes", untickedJson);
+			json.put("boxSize", boxSize);
+			json.put("cached", cached);
+
+			if (layout != null) {
+				JSONArray itemsJson = new JSONArray();
+				for (TickBox tickBox : layout.tickBoxes) {
+					if (tickBox.ticked) {
+						JSONObject itemJson = new JSONObject();
+						itemJson.put("description", tickBox.description);
+						itemJson.put("quantity", tickBox.quantity);
+						itemJson.put("x", tickBox.x);
+						itemJson.put("y", tickBox.y);
+						itemsJson.put(itemJson);
+					}
+				}
+				json.put("items", itemsJson);
+				json.put("destination", layout.destination == null ? JSONObject.NULL : layout.destination);
+				json.put("message", orderText == null ? JSONObject.NULL : orderText);
+			}
+
+			return json;
+		}
+	}
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.tools;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ac.robinson.ticqr.core.DetectionResultCache;
+import ac.robinson.ticqr.core.TickBoxDetector;
+import ac.robinson.ticqr.core.TickBoxLayout;
+
+/**
+ * A standalone HTTP service that runs the app's tick box detection and matching on an uploaded form image. It needs
+ * no external services, but it does not read the page's QR codes: the client must already have registered the page
+ * (as the app does, using its QR code scanner) and sends the layout with each box's position on the image.
+ * <p>
+ * POST /recognise?boxSize=[size]&amp;layout=[json]&amp;codes=[json] with the image (JPEG or PNG) as the request body.
+ * The box size is estimated from the image, so the boxSize parameter is optional - it is only used as a fallback when
+ * there are too few boxes on the image to estimate from.
+ * <p>
+ * The layout (in the CodeMaker server's JSON format) is optional - if it is missing, only the detected un-ticked boxes
+ * are returned. The service has no way to place a layout on the image itself, so every layout box must include
+ * "imageX" and "imageY" to give its position on the uploaded image, and requests with a layout that does not are
+ * rejected with HTTP 422.
+ * <p>
+ * The codes parameter is also optional: the image positions of the points of each QR code, as an array of arrays of
+ * [x, y] points (as used by the app), so that the codes can be masked out before detection.
+ * <p>
+ * The body may instead be raw 8-bit luminance (e.g., the Y plane of an NV21 camera frame, as received by a client
+ * app), given by the width, height and (optionally, if rows are padded) rowStride parameters - this needs no decoding.
+ * <p>
+ * Detection results are cached by image content and parameters, so a repeated upload of the same image skips
+ * detection. The cache is in memory, and optionally also in a directory so that it is kept between runs.
+ * <p>
+ * GET /status returns request counts, latencies and the result cache's hit rate.
+ * <p>
+ * Requests are processed on a fixed-size worker pool with a bounded queue; requests that arrive when the queue is full
+ * are rejected immediately with HTTP 503.
+ */
+public class OrderRecognitionServer {
+
+	private static final String TAG = OrderRecognitionServer.class.getSimpleName();
+	private static final Logger LOG = Logger.getLogger(TAG);
+
+	private static final int DEFAULT_PORT = 8080;
+	private static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+	private static final int DEFAULT_QUEUE_LIMIT = 16;
+	private static final int MAXIMUM_IMAGE_BYTES = 20 * 1024 * 1024;
+	private static final int RESULT_CACHE_CAPACITY = 64;
+	private static final int RESULT_CACHE_DISK_CAPACITY = 4096;
+
+	private final HttpServer mServer;
+	private final ThreadPoolExecutor mWorkers;
+	private final DetectionResultCache mResultCache;
+	private final OrderRecogniser mRecogniser;
+
+	private final AtomicLong mCompletedRequests = new AtomicLong();
+	private final AtomicLong mFailedRequests = new AtomicLong();
+	private final AtomicLong mRejectedRequests = new AtomicLong();
+	private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+	private final AtomicLong mMaximumLatencyNanos = new AtomicLong();
+
+	/**
+	 * @param cacheDirectory the directory to keep cached detection results in, or null to only cache them in memory
+	 */
+	public OrderRecognitionServer(int port, int workers, int queueLimit, File cacheDirectory) throws IOException {
+		mWorkers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new
+				ArrayBlockingQueue<Runnable>(queueLimit)); // the default policy rejects when the queue is full
+		mResultCache = new DetectionResultCache(RESULT_CACHE_CAPACITY, cacheDirectory, RESULT_CACHE_DISK_CAPACITY);
+		mRecogniser = new OrderRecogniser(mResultCache);
+
+		mServer = HttpServer.create(new InetSocketAddress(port), 0);
+		mServer.createContext("/recognise", new RecogniseHandler());
+		mServer.createContext("/status", new StatusHandler());
+	}
+
+	public void start() {
+		mServer.start();
+		LOG.info("Listening on port " + mServer.getAddress().getPort() + " with " + mWorkers.getCorePoolSize() +
+				" workers (queue limit: " + mWorkers.getQueue().remainingCapacity() + ")");
+	}
+
+	public void stop() {
+		mServer.stop(0);
+		mWorkers.shutdown();
+	}
+
+	private class RecogniseHandler implements HttpHandler {
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendError(exchange, 405, "POST an image to this URL");
+				return;
+			}
+
+			// the body is only read once a worker is available, so a full queue rejects requests without reading them
+			final long receivedTime = System.nanoTime();
+			try {
+				mWorkers.execute(new Runnable() {
+					@Override
+					public void run() {
+						handleRecognise(exchange, receivedTime);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				mRejectedRequests.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendError(exchange, 503, "Too many requests - please try again later");
+			}
+		}
+	}
+
+	private class StatusHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				long completed = mCompletedRequests.get();
+				JSONObject status = new JSONObject();
+				status.put("status", "ok");
+				status.put("completed", completed);
+				status.put("failed", mFailedRequests.get());
+				status.put("rejected", mRejectedRequests.get());
+				status.put("active", mWorkers.getActiveCount());
+				status.put("queued", mWorkers.getQueue().size());
+				status.put("meanLatencyMs", completed == 0 ? 0 : toMillis(mTotalLatencyNanos.get() / completed));
+				status.put("maxLatencyMs", toMillis(mMaximumLatencyNanos.get()));
+				status.put("cacheHits", mResultCache.getHitCount());
+				status.put("cacheMisses", mResultCache.getMissCount());
+				status.put("cacheHitRate", mResultCache.getHitRate());
+				sendJson(exchange, 200, status);
+			} catch (JSONException e) {
+				sendError(exchange, 500, "Unable to create status");
+			}
+		}
+	}
+
+	private void handleRecognise(HttpExchange exchange, long receivedTime) {
+		long startTime = System.nanoTime();
+		try {
+			Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+
+			float boxSize = 0; // (i.e., no fallback if the box size cannot be estimated)
+			if (parameters.containsKey("boxSize")) {
+				try {
+					boxSize = Float.parseFloat(parameters.get("boxSize"));
+				} catch (NumberFormatException e) {
+					sendFailure(exchange, 400, "The boxSize parameter must be numeric");
+					return;
+				}
+			}
+
+			TickBoxLayout layout = null;
+			try {
+				if (parameters.containsKey("layout")) {
+					layout = TickBoxLayout.fromJson(new JSONObject(parameters.get("layout")));
+				}
+			} catch (JSONException e) {
+				sendFailure(exchange, 400, "Unable to read layout: " + e.getMessage());
+				return;
+			}
+			if (layout != null && !layout.hasImagePositions()) {
+				sendFailure(exchange, 422, "Every layout box must include imageX and imageY (its position on the " +
+						"uploaded image)");
+				return;
+			}
+
+			List<Point[]> codes;
+			try {
+				codes = parseCodes(parameters.get("codes"));
+			} catch (JSONException e) {
+				sendFailure(exchange, 400, "Unable to read codes: " + e.getMessage());
+				return;
+			}
+
+			byte[] imageBytes = readBody(exchange.getRequestBody());
+			if (imageBytes == null) {
+				sendFailure(exchange, 413, "Image too large");
+				return;
+			}
+
+			long decodeStartTime = System.nanoTime();
+			Mat image;
+			if (parameters.containsKey("width") || parameters.containsKey("height")) {
+				// raw luminance (e.g., a camera frame's Y plane) needs no decoding at all
+				int width;
+				int height;
+				int rowStride;
+				try {
+					width = Integer.parseInt(parameters.get("width"));
+					height = Integer.parseInt(parameters.get("height"));
+					rowStride = parameters.containsKey("rowStride") ? Integer.parseInt(parameters.get("rowStride")) :
+							width;
+				} catch (NumberFormatException e) {
+					sendFailure(exchange, 400, "The width, height and rowStride parameters must be integers");
+					return;
+				}
+				if (width <= 0 || height <= 0 || rowStride < width || imageBytes.length < (long) rowStride * height) {
+					sendFailure(exchange, 400, "The luminance data does not match its width, height and rowStride");
+					return;
+				}
+				image = TickBoxDetector.createLuminanceMat(imageBytes, width, height, rowStride);
+			} else {
+				// decode straight to grey - detection only needs a single channel
+				image = Imgcodecs.imdecode(new MatOfByte(imageBytes), Imgcodecs.IMREAD_GRAYSCALE);
+				if (image.empty()) {
+					sendFailure(exchange, 400, "Unable to decode image");
+					return;
+				}
+			}
+			long decodeNanos = System.nanoTime() - decodeStartTime;
+
+			OrderRecogniser.Result result = mRecogniser.recognise(image, boxSize, 1, layout, codes);
+			image.release();
+			if (result.boxSize <= 0) {
+				sendFailure(exchange, 422, "Unable to estimate box size - please provide a boxSize parameter");
+				return;
+			}
+
+			long endTime = System.nanoTime();
+			JSONObject response = result.toJson();
+			response.put("status", "ok");
+
+			JSONObject latency = new JSONObject();
+			latency.put("queueMs", toMillis(startTime - receivedTime));
+			latency.put("decodeMs", toMillis(decodeNanos));
+			latency.put("detectMs", toMillis(result.detectionNanos));
+			latency.put("matchMs", toMillis(result.matchingNanos));
+			latency.put("totalMs", toMillis(endTime - receivedTime));
+			response.put("latency", latency);
+
+			recordLatency(endTime - receivedTime);
+			LOG.info("Recognised " + (layout == null ? "image" : "page") + " in " + toMillis(endTime - receivedTime) +
+					" ms (queue: " + toMillis(startTime - receivedTime) + ", detect: " + toMillis(result
+					.detectionNanos) + (result.cached ? ", cached" : "") + ")");
+			sendJson(exchange, 200, response);
+
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "Recognition failed", e);
+			sendFailure(exchange, 500, "Recognition failed");
+		}
+	}
+
+	/**
+	 * @return the points of each QR code, parsed from a JSON array of arrays of [x, y] points (e.g., [[[10, 10], [90,
+	 * 10], [10, 90]]]); or an empty list if there are none
+	 */
+	private static List<Point[]> parseCodes(String codesJson) throws JSONException {
+		List<Point[]> codes = new ArrayList<>();
+		if (codesJson != null) {
+			JSONArray codesArray = new JSONArray(codesJson);
+			for (int i = 0; i < codesArray.length(); i++) {
+				JSONArray pointsArray = codesArray.getJSONArray(i);
+				Point[] points = new Point[pointsArray.length()];
+				for (int j = 0; j < points.length; j++) {
+					JSONArray pointArray = pointsArray.getJSONArray(j);
+					points[j] = new Point(pointArray.getDouble(0), pointArray.getDouble(1));
+				}
+				codes.add(points);
+			}
+		}
+		return codes;
+	}
+
+	private void recordLatency(long latencyNanos) {
+		mCompletedRequests.incrementAndGet();
+		mTotalLatencyNanos.addAndGet(latencyNanos);
+		long maximum = mMaximumLatencyNanos.get();
+		while (latencyNanos > maximum && !mMaximumLatencyNanos.compareAndSet(maximum, latencyNanos)) {
+			maximum = mMaximumLatencyNanos.get();
+		}
+	}
+
+	private void sendFailure(HttpExchange exchange, int code, String message) {
+		mFailedRequests.incrementAndGet();
+		sendError(exchange, code, message);
+	}
+
+	private static void sendError(HttpExchange exchange, int code, String message) {
+		try {
+			JSONObject response = new JSONObject();
+			response.put("status", "error");
+			response.put("message", message);
+			sendJson(exchange, code, response);
+		} catch (JSONException e) {
+			exchange.close();
+		}
+	}
+
+	private static void sendJson(HttpExchange exchange, int code, JSONObject response) {
+		try {
+			byte[] responseBytes = response.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(code, responseBytes.length);
+			OutputStream outputStream = exchange.getResponseBody();
+			outputStream.write(responseBytes);
+			outputStream.close();
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Unable to send response", e);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return the contents of the stream, or null if it is larger than MAXIMUM_IMAGE_BYTES
+	 */
+	private static byte[] readBody(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte[] buffer = new byte[16384];
+		int read;
+		while ((read = inputStream.read(buffer)) != -1) {
+			outputStream.write(buffer, 0, read);
+			if (outputStream.size() > MAXIMUM_IMAGE_BYTES) {
+				return null;
+			}
+		}
+		return outputStream.toByteArray();
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<>();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				int separator = parameter.indexOf('=');
+				if (separator > 0) {
+					parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"), URLDecoder.decode
+							(parameter.substring(separator + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 10000d) / 100d;
+	}
+
+	/**
+	 * Usage: OrderRecognitionServer [--port 8080] [--workers n] [--queue 16] [--cache directory]
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		int workers = DEFAULT_WORKERS;
+		int queueLimit = DEFAULT_QUEUE_LIMIT;
+		File cacheDirectory = null;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "--port":
+					port = Integer.parseInt(args[i + 1]);
+					break;
+				case "--workers":
+					workers = Integer.parseInt(args[i + 1]);
+					break;
+				case "--queue":
+					queueLimit = Integer.parseInt(args[i + 1]);
+					break;
+				case "--cache":
+					cacheDirectory = new File(args[i + 1]);
+					break;
+				default:
+					System.err.println("Unknown option: " + args[i]);
+					System.exit(1);
+			}
+		}
+
+		try {
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		} catch (UnsatisfiedLinkError e) {
+			System.err.println("Unable to load " + Core.NATIVE_LIBRARY_NAME + " - set -Djava.library.path to the " +
+					"directory containing the desktop OpenCV native library");
+			System.exit(1);
+		}
+
+		new OrderRecognitionServer(port, workers, queueLimit, cacheDirectory).start();
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2014 Simon Robinson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.robinson.ticqr.tools;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ac.robinson.ticqr.core.ScanRecording;
+import ac.robinson.ticqr.core.TickBox;
+import ac.robinson.ticqr.core.TickBoxLayout;
+
+/**
+ * Replays scans recorded on a device (see ScanRecording) through detection and matching as fast as possible, then
+ * reports the time taken and any differences from what the device found. Use it to reproduce problems from the field,
+ * or as a benchmark on real-world images - e.g., to compare timings before and after a change to detection.
+ * <p>
+ * Usage: ScanReplayRunner [--iterations n] recording-or-directory...
+ * <p>
+ * Detection runs at the same scale as it did on the device (see DetectionCostModel), so that results are comparable.
+ * Detection results are not cached, so every iteration runs the full pipeline. The exit code is 1 if any recording
+ * could not be read, or if any visible box was found (or not found) differently to the device.
+ */
+public class ScanReplayRunner {
+
+	private static final int DEFAULT_ITERATIONS = 5;
+
+	private final OrderRecogniser mRecogniser = new OrderRecogniser(null);
+	private final int mIterations;
+
+	private int mRecordingCount;
+	private int mFailedCount;
+	private int mDifferentCount;
+	private long mTotalDetectionNanos;
+	private long mTotalDeviceMillis;
+
+	private ScanReplayRunner(int iterations) {
+		mIterations = iterations;
+	}
+
+	private void replay(File file) {
+		ScanRecording recording;
+		try {
+			recording = ScanRecording.read(file);
+		} catch (IOException | JSONException e) {
+			System.out.println(file.getName() + ": unable to read (" + e.getMessage() + ")");
+			mFailedCount += 1;
+			return;
+		}
+
+		// decode straight to grey - the same as the app's conversion of the bitmap before detection
+		Mat image = Imgcodecs.imdecode(new MatOfByte(recording.image), Imgcodecs.IMREAD_GRAYSCALE);
+		if (image.empty()) {
+			System.out.println(file.getName() + ": unable to decode image");
+			mFailedCount += 1;
+			return;
+		}
+		int width = image.cols();
+		int height = image.rows();
+
+		long[] detectionNanos = new long[mIterations];
+		long[] matchingNanos = new long[mIterations];
+		OrderRecogniser.Result result = null;
+		try {
+			for (int i = 0; i < mIterations; i++) {
+				// (recognition modifies the layout's boxes, so each iteration needs a new copy)
+				TickBoxLayout layout = recording.layout == null ? null : TickBoxLayout.fromJson(recording.layout);
+				result = mRecogniser.recognise(image, recording.expectedBoxSize, recording.detectionScale, layout,
+						recording.codes);
+				detectionNanos[i] = result.detectionNanos;
+				matchingNanos[i] = result.matchingNanos;
+			}
+		} catch (JSONException e) {
+			System.out.println(file.getName() + ": unable to parse layout (" + e.getMessage() + ")");
+			mFailedCount += 1;
+			return;
+		} finally {
+			image.release();
+		}
+
+		int differences = -1; // (i.e., nothing to compare)
+		if (result.layout != null) {
+			try {
+				differences = countDifferences(recording.layout.getJSONArray("tickBoxes"), result.layout.tickBoxes);
+			} catch (JSONException e) {
+				differences = -1;
+			}
+		}
+
+		Arrays.sort(detectionNanos);
+		Arrays.sort(matchingNanos);
+		long medianDetectionNanos = detectionNanos[mIterations / 2];
+		mRecordingCount += 1;
+		mTotalDetectionNanos += medianDetectionNanos;
+		mTotalDeviceMillis += recording.deviceDetectionMillis;
+		if (differences > 0) {
+			mDifferentCount += 1;
+		}
+
+		StringBuilder report = new StringBuilder(file.getName()).append(": ");
+		report.append(width).append('x').append(height);
+		if (recording.detectionScale < 1) {
+			report.append(" at scale ").append(String.format("%.2f", recording.detectionScale));
+		}
+		report.append(", box size ").append(format(result.boxSize));
+		report.append(", ").append(result.untickedBoxes.size()).append(" un-ticked");
+		if (recording.deviceResult != null) {
+			report.append(" (device: ").append(recording.deviceResult.untickedBoxes.size()).append(" of size ")
+					.append(format(recording.deviceResult.boxSize)).append(')');
+		}
+		report.append(", detect ").append(format(detectionNanos[0] / 1e6)).append('/').append(format
+				(medianDetectionNanos / 1e6)).append(" ms (min/median)");
+		report.append(", match ").append(format(matchingNanos[mIterations / 2] / 1e6)).append(" ms");
+		if (recording.deviceDetectionMillis > 0) {
+			report.append(", device ").append(recording.deviceDetectionMillis).append(" ms");
+		}
+		if (differences < 0) {
+			report.append(", no device results to compare");
+		} else if (differences > 0) {
+			report.append(", ").append(differences).append(" box(es) differ from device");
+		}
+		System.out.println(report);
+	}
+
+	/**
+	 * @return the number of boxes that were visible on the device, but were found differently by the replay; or -1 if
+	 * no box has device results (e.g., the recording was saved before detection finished on the device)
+	 */
+	private static int countDifferences(JSONArray recordedBoxes, List<TickBox> tickBoxes) throws JSONException {
+		int differences = 0;
+		boolean compared = false;
+		for (int i = 0, n = Math.min(recordedBoxes.length(), tickBoxes.size()); i < n; i++) {
+			JSONObject recordedBox = recordedBoxes.getJSONObject(i);
+			if (!recordedBox.has("visible") || !recordedBox.has("found")) {
+				continue;
+			}
+			compared = true;
+			if (recordedBox.getBoolean("visible") && recordedBox.getBoolean("found") != tickBoxes.get(i)
+					.foundOnImage) {
+				differences += 1;
+			}
+		}
+		return compared ? differences : -1;
+	}
+
+	private void printSummary() {
+		if (mRecordingCount > 0) {
+			System.out.println("Replayed " + mRecordingCount + " recording(s): mean detection " + format
+					(mTotalDetectionNanos / 1e6 / mRecordingCount) + " ms (device: " + format(mTotalDeviceMillis /
+					(double) mRecordingCount) + " ms), " + mDifferentCount + " different from device");
+		}
+		if (mFailedCount > 0) {
+			System.out.println(mFailedCount + " recording(s) could not be replayed");
+		}
+	}
+
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+
+	private static void addRecordings(File file, List<File> recordings) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			if (files != null) {
+				Arrays.sort(files); // (recording names start with their timestamp)
+				for (File child : files) {
+					if (child.getName().endsWith(ScanRecording.FILE_EXTENSION)) {
+						recordings.add(child);
+					}
+				}
+			}
+		} else {
+			recordings.add(file);
+		}
+	}
+
+	public static void main(String[] args) {
+		int iterations = DEFAULT_ITERATIONS;
+		List<File> recordings = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--iterations":
+					iterations = Math.max(1, Integer.parseInt(args[++i]));
+					break;
+				default:
+					if (args[i].startsWith("--")) {
+						System.err.println("Unknown option: " + args[i]);
+						System.exit(1);
+					}
+					addRecordings(new File(args[i]), recordings);
+					break;
+			}
+		}
+		if (recordings.isEmpty()) {
+			System.err.println("Usage: ScanReplayRunner [--iterations n] recording-or-directory...");
+			System.exit(1);
+		}
+
+		try {
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		} catch (UnsatisfiedLinkError e) {
+			System.err.println("Unable to load " + Core.NATIVE_LIBRARY_NAME + " - set -Djava.library.path to the " +
+					"directory containing the desktop OpenCV native library");
+			System.exit(1);
+		}
+
+		ScanReplayRunner runner = new ScanReplayRunner(iterations);
+		for (File recording : recordings) {
+			runner.replay(recording);
+		}
+		runner.printSummary();
+		System.exit(runner.mFailedCount > 0 || runner.mDifferentCount > 0 ? 1 : 0);
+	}
+}